@@ -58,12 +58,17 @@ import android.widget.Toast;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import java.io.FileOutputStream;
 import java.io.FileInputStream;
 import java.io.ObjectOutputStream;
 import java.io.ObjectInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.FileNotFoundException;
 
 public class SynCarnet extends Activity implements TaskAddFragment.Callbacks, TaskEditFragment.Callbacks, TaskListFragment.Callbacks, SyncedDevicesFragment.Callbacks {
@@ -71,7 +76,15 @@ public class SynCarnet extends Activity implements TaskAddFragment.Callbacks, Ta
 	private TaskList tasks; 
 	private ArrayList<SyncedDevice> savedPeers;
 	private TaskListAdapter adapter;
+	private TombstoneCompactor compactor = new TombstoneCompactor();
 	private String tasks_file = "tasks";
+	// The saved list in the wire format, sent as is to new peers
+	private String snapshot_file = "tasks.wire";
+	private volatile Snapshot snapshot;
+	// Writes the snapshots in the order of the saves, its thread ends when
+	// idle
+	private final ThreadPoolExecutor snapshotWriter = new ThreadPoolExecutor(0, 1,
+			1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
 	private String peers_file = "peers";
 	private boolean isWifiP2pEnabled;
 	private boolean isConnected = false;
@@ -102,6 +115,7 @@ public class SynCarnet extends Activity implements TaskAddFragment.Callbacks, Ta
 		channel = manager.initialize(this, getMainLooper(), null);
 
 		tasks = readTaskList();
+		snapshot = readSnapshot(tasks);
 		savedPeers = readSavedPeers();
 
 		adapter = new TaskListAdapter(this, tasks);
@@ -149,6 +163,7 @@ public class SynCarnet extends Activity implements TaskAddFragment.Callbacks, Ta
 
 	public void setTaskList(TaskList taskList) {
 		tasks = taskList;
+		compactor.compact(tasks, oldestSync());
 		adapter.setTasks(taskList);
 		adapter.notifyDataSetChanged();
 		if (progressDialog != null && progressDialog.isShowing()) {
@@ -202,6 +217,27 @@ public class SynCarnet extends Activity implements TaskAddFragment.Callbacks, Ta
 		return tasks;
 	}
 
+	/**
+	 * Returns a copy of the task list, taken on the UI thread which is the
+	 * one changing it. Other threads wait for it and may keep it.
+	 */
+	public TaskList copyTasks() throws InterruptedIOException {
+		final TaskList[] copy = new TaskList[1];
+		final CountDownLatch done = new CountDownLatch(1);
+		runOnUiThread(new Runnable() {
+			public void run() {
+				copy[0] = new TaskList(tasks);
+				done.countDown();
+			}
+		});
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while copying the tasks");
+		}
+		return copy[0];
+	}
+
 	/** Switch to EditTask view:
 	  @param int position of the task to edit in the list
 	  */
@@ -255,9 +291,14 @@ public class SynCarnet extends Activity implements TaskAddFragment.Callbacks, Ta
 		ft.commit();
 	}
 
+	/**
+	 * Drops the tombstones every known peer has received, without the grace
+	 * period. Clearing all of them would bring back tasks deleted here on
+	 * peers which did not sync since.
+	 */
 	@Override
 	public void onClearDeletedClick() {
-		tasks.clearDeleted();
+		new TombstoneCompactor(0).compact(tasks, oldestSync());
 		Toast.makeText(this, this.getString(R.string.deletedTaskCleared), Toast.LENGTH_SHORT).show();
 	}
 
@@ -311,6 +352,7 @@ public class SynCarnet extends Activity implements TaskAddFragment.Callbacks, Ta
 
 	/* Saving and retrieving the local TaskList */
 	private void saveTaskList(TaskList tl) {
+		compactor.compact(tl, oldestSync());
 		try {
 			FileOutputStream fos = this.openFileOutput(tasks_file, Context.MODE_PRIVATE);
 			ObjectOutputStream os = new ObjectOutputStream(fos);
@@ -321,14 +363,69 @@ public class SynCarnet extends Activity implements TaskAddFragment.Callbacks, Ta
 					Toast.LENGTH_LONG);
 			toast.show();
 		}
+		saveSnapshot(tl);
+	}
+
+	/**
+	 * Writes the snapshot of a copy of the list on another thread, the
+	 * whole list being encoded.
+	 */
+	private void saveSnapshot(TaskList tl) {
+		final TaskList copy = new TaskList(tl);
+		snapshotWriter.execute(new Runnable() {
+			public void run() {
+				Snapshot old = snapshot;
+				try {
+					snapshot = Snapshot.write(getFileStreamPath(snapshot_file), copy);
+				} catch (IOException e) {
+					// Full lists are encoded again when they are sent
+					snapshot = null;
+					Log.e(TAG, "Could not save the snapshot", e);
+				}
+				if (old != null) {
+					try {
+						old.close();
+					} catch (IOException e) {
+						Log.e(TAG, "Could not close the old snapshot", e);
+					}
+				}
+			}
+		});
+	}
+
+	private Snapshot readSnapshot(TaskList tl) {
+		try {
+			return Snapshot.open(getFileStreamPath(snapshot_file), tl);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the snapshot of the list as it was last saved, or null.
+	 */
+	public Snapshot getSnapshot() {
+		return snapshot;
 	}
 
+	/**
+	 * Reads the saved list, or starts an empty one. A file which cannot be
+	 * read is kept aside rather than overwritten by the next save.
+	 */
 	private TaskList readTaskList() {
 		try {
 			FileInputStream fis = this.openFileInput(tasks_file);
-			ObjectInputStream is = new ObjectInputStream(fis);
-			return (TaskList)is.readObject();
+			ObjectInputStream is = new TaskListInputStream(fis);
+			try {
+				return (TaskList)is.readObject();
+			} finally {
+				is.close();
+			}
+		} catch (FileNotFoundException e) {
+			return new TaskList();
 		} catch (Exception e) {
+			Log.e(TAG, "Could not read the tasks, keeping them in " + tasks_file + ".unreadable", e);
+			getFileStreamPath(tasks_file).renameTo(getFileStreamPath(tasks_file + ".unreadable"));
 			return new TaskList();
 		}
 	}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2014 Nicolas Miller, Florian Paindorge
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package fr.syncarnet.sync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+/**
+ * Sessions over RFCOMM, either secure or insecure.
+ */
+public class BluetoothTransport implements SyncTransport {
+	// Name for the SDP record when creating server socket
+	private static final String NAME_SECURE = "SynCarnetSecure";
+	private static final String NAME_INSECURE = "SynCarnetInsecure";
+
+	// Unique UUID for this application
+	private static final UUID MY_UUID_SECURE =
+		UUID.fromString("aa87c0d0-afac-11de-8a39-0850200c9a65");
+	private static final UUID MY_UUID_INSECURE =
+		UUID.fromString("ace255c0-200a-11e0-ac64-0850200c9a66");
+
+	private final BluetoothAdapter adapter;
+	private final BluetoothDevice device;
+	private final boolean secure;
+	private BluetoothServerSocket serverSocket;
+	private BluetoothSocket connecting;
+	private boolean closed = false;
+
+	/**
+	 * @param device  The device to connect to, null if the transport only
+	 * accepts sessions
+	 */
+	public BluetoothTransport(BluetoothAdapter adapter, BluetoothDevice device, boolean secure) {
+		this.adapter = adapter;
+		this.device = device;
+		this.secure = secure;
+	}
+
+	public SyncSession connect() throws IOException {
+		BluetoothSocket socket;
+		synchronized (this) {
+			if (closed) {
+				throw new IOException("Transport closed");
+			}
+			if (secure) {
+				socket = device.createRfcommSocketToServiceRecord(MY_UUID_SECURE);
+			} else {
+				socket = device.createInsecureRfcommSocketToServiceRecord(MY_UUID_INSECURE);
+			}
+			connecting = socket;
+		}
+		// Always cancel discovery because it will slow down a connection
+		adapter.cancelDiscovery();
+		try {
+			// This is a blocking call and will only return on a
+			// successful connection or an exception
+			socket.connect();
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		} finally {
+			synchronized (this) {
+				connecting = null;
+			}
+		}
+		return new BluetoothSession(socket);
+	}
+
+	public SyncSession accept() throws IOException {
+		BluetoothServerSocket s;
+		synchronized (this) {
+			if (closed) {
+				throw new IOException("Transport closed");
+			}
+			if (serverSocket == null) {
+				if (secure) {
+					serverSocket = adapter.listenUsingRfcommWithServiceRecord(NAME_SECURE, MY_UUID_SECURE);
+				} else {
+					serverSocket = adapter.listenUsingInsecureRfcommWithServiceRecord(NAME_INSECURE, MY_UUID_INSECURE);
+				}
+			}
+			s = serverSocket;
+		}
+		return new BluetoothSession(s.accept());
+	}
+
+	public synchronized void close() throws IOException {
+		closed = true;
+		if (connecting != null) {
+			connecting.close();
+		}
+		if (serverSocket != null) {
+			serverSocket.close();
+		}
+	}
+
+	/**
+	 * A connected RFCOMM socket.
+	 */
+	public static class BluetoothSession implements SyncSession {
+		private final BluetoothSocket socket;
+
+		public BluetoothSession(BluetoothSocket socket) {
+			this.socket = socket;
+		}
+
+		public BluetoothDevice getRemoteDevice() {
+			return socket.getRemoteDevice();
+		}
+
+		public InputStream getInputStream() throws IOException {
+			return socket.getInputStream();
+		}
+
+		public OutputStream getOutputStream() throws IOException {
+			return socket.getOutputStream();
+		}
+
+		public void close() throws IOException {
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,576 @@
+/*
+ * Copyright (C) 2013-14 Nicolas Miller, Florian Paindorge
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package fr.syncarnet.sync;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * The payloads both peers send each other, over a connection which may drop
+ * and be replaced by a new one.
+ *
+ * What each side sends is cut into numbered chunks checked with a CRC32, an
+ * empty chunk ending the payload. The receiver acknowledges the chunks it
+ * delivered in order and asks again for a corrupted one, which is the only
+ * one sent again. The sender keeps at most WINDOW chunks until they are
+ * acknowledged, and sends the oldest again when nothing is acknowledged for a
+ * while. When the connection drops, both sides wait for a new one to be
+ * attached: each then tells the other the next chunk it expects and the
+ * transfer goes on from there.
+ *
+ * One thread writes to the output stream and one reads from the input stream,
+ * acknowledgements are only read while the latter reads, see finish.
+ */
+public class ChunkSession {
+	/** RFCOMM packets hold about 1KB, a chunk keeps a few of them in flight */
+	public static final int CHUNK_SIZE = 4096;
+	/** Chunks sent and not acknowledged yet */
+	public static final int WINDOW = 16;
+	/** How long a dropped connection may take to come back, in milliseconds */
+	public static final long RESUME_TIMEOUT = 60000;
+	/** How long the oldest chunk may wait for its acknowledgement */
+	public static final long RETRANSMIT_TIMEOUT = 5000;
+
+	private static final int DATA = 1;
+	private static final int ACK = 2;
+	private static final int NACK = 3;
+	private static final Random random = new Random();
+
+	/**
+	 * Told when the connection drops, a new one should then be opened and
+	 * given to connect.
+	 */
+	public interface Listener {
+		public void onSuspended(ChunkSession session);
+	}
+
+	private final long id;
+	private final Listener listener;
+	private final Object writeLock = new Object();
+	// Sends the oldest chunk again for the threads waiting for an
+	// acknowledgement, which hold the lock. Its thread ends when idle.
+	private final ThreadPoolExecutor resender = new ThreadPoolExecutor(0, 1,
+			RETRANSMIT_TIMEOUT, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+	private boolean resending = false;
+
+	// The current connection and its number, null while suspended
+	private DataInputStream in;
+	private DataOutputStream out;
+	private int connection = 0;
+	private long suspendedAt;
+	private boolean aborted = false;
+
+	// Sending side: the chunks not acknowledged by their number, the number
+	// of chunks sent and of chunks acknowledged
+	private final TreeMap<Integer, byte[]> unacked = new TreeMap<Integer, byte[]>();
+	private int sent = 0;
+	private int acked = 0;
+	private boolean closed = false;
+
+	// Receiving side: the next chunk to deliver and the chunks received
+	// after a missing one
+	private int expected = 0;
+	private final TreeMap<Integer, byte[]> early = new TreeMap<Integer, byte[]>();
+	private boolean ended = false;
+
+	private ChunkSession(long id, Listener listener) {
+		this.id = id;
+		this.listener = listener;
+	}
+
+	/**
+	 * Starts a connection. Each side sends the session it wants to resume,
+	 * or a random number, and the next chunk it expects. Returns the
+	 * suspended session on its new connection if both sides want to resume
+	 * it, a new session otherwise. The suspended session is then aborted.
+	 *
+	 * @param suspended
+	 * 	Set it to <b>null</b> if there is none
+	 */
+	public static ChunkSession connect(InputStream in, OutputStream out, ChunkSession suspended, Listener listener) throws IOException {
+		long mine = suspended != null ? suspended.id : random.nextLong();
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out, 12));
+		dos.writeLong(mine);
+		dos.writeInt(suspended != null ? suspended.getExpected() : 0);
+		dos.flush();
+		DataInputStream dis = new DataInputStream(in);
+		long theirs = dis.readLong();
+		int peerExpected = dis.readInt();
+		if (suspended != null && theirs == mine) {
+			suspended.attach(in, out, peerExpected);
+			return suspended;
+		}
+		if (suspended != null) {
+			suspended.abort();
+		}
+		ChunkSession session = new ChunkSession(mine ^ theirs, listener);
+		session.attach(in, out, 0);
+		return session;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * Whether the connection dropped and the session waits for a new one.
+	 */
+	public synchronized boolean isSuspended() {
+		return in == null && !aborted;
+	}
+
+	/**
+	 * Gives up the session, the threads using it get an exception.
+	 */
+	public synchronized void abort() {
+		aborted = true;
+		in = null;
+		out = null;
+		notifyAll();
+	}
+
+	private synchronized int getExpected() {
+		return expected;
+	}
+
+	/**
+	 * Continues on a new connection, sending again the chunks the peer has
+	 * not received.
+	 */
+	private void attach(InputStream is, OutputStream os, int peerExpected) throws IOException {
+		TreeMap<Integer, byte[]> resent;
+		int conn;
+		synchronized (this) {
+			if (aborted) {
+				throw new InterruptedIOException("Session aborted");
+			}
+			in = new DataInputStream(is);
+			out = new DataOutputStream(new BufferedOutputStream(os, CHUNK_SIZE + 16));
+			conn = ++connection;
+			early.clear();
+			acknowledged(peerExpected);
+			resent = new TreeMap<Integer, byte[]>(unacked);
+			notifyAll();
+		}
+		for (Map.Entry<Integer, byte[]> e : resent.entrySet()) {
+			writeData(e.getKey(), e.getValue(), conn);
+		}
+	}
+
+	/**
+	 * Returns the stream the payload of the peer is read from.
+	 *
+	 * @param listener
+	 * 	Set it to <b>null</b> if not used
+	 */
+	public InputStream getInputStream(final TransferListener listener) {
+		return new InputStream() {
+			private byte[] chunk = new byte[0];
+			private int pos = 0;
+			private long received = 0;
+
+			@Override
+			public int read() throws IOException {
+				if (!fill()) {
+					return -1;
+				}
+				return chunk[pos++] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0) {
+					return 0;
+				}
+				if (!fill()) {
+					return -1;
+				}
+				int n = Math.min(len, chunk.length - pos);
+				System.arraycopy(chunk, pos, b, off, n);
+				pos += n;
+				return n;
+			}
+
+			@Override
+			public int available() {
+				return chunk.length - pos;
+			}
+
+			private boolean fill() throws IOException {
+				while (pos == chunk.length) {
+					if (ended) {
+						return false;
+					}
+					chunk = nextChunk();
+					pos = 0;
+					received += chunk.length;
+					if (listener != null && chunk.length > 0) {
+						listener.onProgress(received);
+					}
+				}
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Returns the stream the payload sent to the peer is written to. Closing
+	 * it ends the payload and waits until the peer received all of it.
+	 *
+	 * @param listener
+	 * 	Set it to <b>null</b> if not used
+	 */
+	public OutputStream getOutputStream(final TransferListener listener) {
+		return new OutputStream() {
+			private final byte[] buffer = new byte[CHUNK_SIZE];
+			private int count = 0;
+			private long written = 0;
+
+			@Override
+			public void write(int b) throws IOException {
+				if (count == buffer.length) {
+					flushChunk();
+				}
+				buffer[count++] = (byte) b;
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				while (len > 0) {
+					if (count == buffer.length) {
+						flushChunk();
+					}
+					int n = Math.min(len, buffer.length - count);
+					System.arraycopy(b, off, buffer, count, n);
+					count += n;
+					off += n;
+					len -= n;
+				}
+			}
+
+			/**
+			 * Sends the pending bytes as a (possibly short) chunk.
+			 */
+			@Override
+			public void flush() throws IOException {
+				if (count > 0) {
+					flushChunk();
+				}
+			}
+
+			@Override
+			public void close() throws IOException {
+				if (closed) {
+					return;
+				}
+				flush();
+				sendChunk(new byte[0]);
+				synchronized (ChunkSession.this) {
+					closed = true;
+					while (acked < sent) {
+						awaitProgress();
+					}
+				}
+			}
+
+			private void flushChunk() throws IOException {
+				byte[] chunk = new byte[count];
+				System.arraycopy(buffer, 0, chunk, 0, count);
+				sendChunk(chunk);
+				written += count;
+				count = 0;
+				if (listener != null) {
+					listener.onProgress(written);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Called by the reading thread once the payload of the peer is read,
+	 * reads the acknowledgements until the peer received the whole payload
+	 * sent to it.
+	 */
+	public void finish() throws IOException {
+		while (true) {
+			synchronized (this) {
+				if (closed && acked == sent) {
+					return;
+				}
+			}
+			pump();
+		}
+	}
+
+	/* Sending side */
+
+	private void sendChunk(byte[] chunk) throws IOException {
+		int seq;
+		int conn;
+		synchronized (this) {
+			while (sent - acked >= WINDOW) {
+				awaitProgress();
+			}
+			seq = sent++;
+			unacked.put(seq, chunk);
+			conn = connection;
+		}
+		writeData(seq, chunk, conn);
+	}
+
+	/**
+	 * Waits for an acknowledgement, sending the oldest chunk again if none
+	 * comes. Called with the lock held.
+	 */
+	private void awaitProgress() throws IOException {
+		int before = acked;
+		long start = System.currentTimeMillis();
+		while (acked == before) {
+			checkConnection();
+			long waited = System.currentTimeMillis() - start;
+			if (in != null && waited >= RETRANSMIT_TIMEOUT) {
+				resendOldest();
+				start = System.currentTimeMillis();
+				continue;
+			}
+			try {
+				wait(in != null ? RETRANSMIT_TIMEOUT - waited : RESUME_TIMEOUT);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while waiting for the peer");
+			}
+		}
+	}
+
+	/**
+	 * Sends the oldest chunk again, unless it is still being sent from the
+	 * last timeout. Called with the lock held.
+	 */
+	private void resendOldest() {
+		final Map.Entry<Integer, byte[]> oldest = unacked.firstEntry();
+		if (oldest == null || resending) {
+			return;
+		}
+		resending = true;
+		final int conn = connection;
+		resender.execute(new Runnable() {
+			public void run() {
+				try {
+					writeData(oldest.getKey(), oldest.getValue(), conn);
+				} finally {
+					synchronized (ChunkSession.this) {
+						resending = false;
+					}
+				}
+			}
+		});
+	}
+
+	private void acknowledged(int count) {
+		if (count > acked && count <= sent) {
+			unacked.headMap(count).clear();
+			acked = count;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Sends a chunk on the given connection, does nothing if it has been
+	 * replaced. Failures suspend the session, the chunk is sent again once
+	 * a new connection is attached.
+	 */
+	private void writeData(int seq, byte[] chunk, int conn) {
+		CRC32 crc = new CRC32();
+		crc.update(chunk);
+		try {
+			synchronized (writeLock) {
+				DataOutputStream dos = output(conn);
+				if (dos == null) {
+					return;
+				}
+				dos.writeByte(DATA);
+				dos.writeInt(seq);
+				dos.writeInt(chunk.length);
+				dos.writeInt((int) crc.getValue());
+				dos.write(chunk);
+				dos.flush();
+			}
+		} catch (IOException e) {
+			suspend(conn);
+		}
+	}
+
+	private void writeControl(int type, int seq, int conn) {
+		try {
+			synchronized (writeLock) {
+				DataOutputStream dos = output(conn);
+				if (dos == null) {
+					return;
+				}
+				dos.writeByte(type);
+				dos.writeInt(seq);
+				dos.flush();
+			}
+		} catch (IOException e) {
+			suspend(conn);
+		}
+	}
+
+	private synchronized DataOutputStream output(int conn) {
+		return conn == connection ? out : null;
+	}
+
+	/* Receiving side */
+
+	/**
+	 * Returns the next chunk of the payload of the peer, an empty one at its
+	 * end.
+	 */
+	private byte[] nextChunk() throws IOException {
+		while (true) {
+			byte[] chunk;
+			int next;
+			int conn;
+			synchronized (this) {
+				chunk = early.remove(expected);
+				if (chunk != null) {
+					expected++;
+					ended = chunk.length == 0;
+				}
+				next = expected;
+				conn = connection;
+			}
+			if (chunk != null) {
+				writeControl(ACK, next, conn);
+				return chunk;
+			}
+			pump();
+		}
+	}
+
+	/**
+	 * Reads a frame from the connection, or waits for a new connection if it
+	 * dropped.
+	 */
+	private void pump() throws IOException {
+		DataInputStream dis;
+		int conn;
+		synchronized (this) {
+			while (in == null) {
+				checkConnection();
+				try {
+					wait(RESUME_TIMEOUT);
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Interrupted while waiting for the peer");
+				}
+			}
+			dis = in;
+			conn = connection;
+		}
+		try {
+			int type = dis.readUnsignedByte();
+			int seq = dis.readInt();
+			if (type == ACK) {
+				synchronized (this) {
+					acknowledged(seq);
+				}
+			} else if (type == NACK) {
+				byte[] chunk;
+				synchronized (this) {
+					chunk = unacked.get(seq);
+				}
+				if (chunk != null) {
+					writeData(seq, chunk, conn);
+				}
+			} else if (type == DATA) {
+				receiveData(dis, seq, conn);
+			} else {
+				throw new IOException("Unknown frame " + type);
+			}
+		} catch (IOException e) {
+			suspend(conn);
+		}
+	}
+
+	private void receiveData(DataInputStream dis, int seq, int conn) throws IOException {
+		int length = dis.readInt();
+		int checksum = dis.readInt();
+		if (length < 0 || length > CHUNK_SIZE) {
+			throw new IOException("Invalid chunk length " + length);
+		}
+		byte[] chunk = new byte[length];
+		dis.readFully(chunk);
+		CRC32 crc = new CRC32();
+		crc.update(chunk);
+		if ((int) crc.getValue() != checksum) {
+			writeControl(NACK, seq, conn);
+			return;
+		}
+		int next;
+		synchronized (this) {
+			if (seq >= expected && seq < expected + WINDOW) {
+				early.put(seq, chunk);
+				return;
+			}
+			next = expected;
+		}
+		// Sent again before our acknowledgement arrived
+		writeControl(ACK, next, conn);
+	}
+
+	/* Connection */
+
+	private void suspend(int conn) {
+		synchronized (this) {
+			if (conn != connection || in == null) {
+				return;
+			}
+			in = null;
+			out = null;
+			suspendedAt = System.currentTimeMillis();
+			notifyAll();
+		}
+		if (listener != null) {
+			listener.onSuspended(this);
+		}
+	}
+
+	/**
+	 * Throws if the session is over. Called with the lock held.
+	 */
+	private void checkConnection() throws IOException {
+		if (aborted) {
+			throw new InterruptedIOException("Session aborted");
+		}
+		if (in == null && System.currentTimeMillis() - suspendedAt >= RESUME_TIMEOUT) {
+			abort();
+			throw new IOException("Connection lost");
+		}
+	}
+}
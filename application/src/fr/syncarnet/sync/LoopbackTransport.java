@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2014 Nicolas Miller, Florian Paindorge
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package fr.syncarnet.sync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+
+/**
+ * Sessions in memory, for driving the protocol between two peers of the
+ * same JVM. Each connect is paired with an accept, the bytes going through
+ * bounded pipes.
+ *
+ * The pipes of java.io are not used: they fail once the thread which last
+ * wrote to them ends, while the protocol writes from several threads.
+ */
+public class LoopbackTransport implements SyncTransport {
+	/** What a pipe holds before the writer waits for the reader */
+	public static final int PIPE_SIZE = 64 * 1024;
+
+	private final LinkedList<SyncSession> pending = new LinkedList<SyncSession>();
+	private boolean closed = false;
+
+	public SyncSession connect() throws IOException {
+		Pipe there = new Pipe();
+		Pipe back = new Pipe();
+		synchronized (this) {
+			if (closed) {
+				throw new IOException("Transport closed");
+			}
+			pending.add(new LoopbackSession(there, back));
+			notifyAll();
+		}
+		return new LoopbackSession(back, there);
+	}
+
+	public synchronized SyncSession accept() throws IOException {
+		try {
+			while (pending.isEmpty()) {
+				if (closed) {
+					throw new IOException("Transport closed");
+				}
+				wait();
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while waiting for a peer");
+		}
+		return pending.removeFirst();
+	}
+
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	/**
+	 * One end of a pair of pipes.
+	 */
+	private static class LoopbackSession implements SyncSession {
+		private final Pipe in;
+		private final Pipe out;
+
+		LoopbackSession(Pipe in, Pipe out) {
+			this.in = in;
+			this.out = out;
+		}
+
+		public InputStream getInputStream() {
+			return in.input;
+		}
+
+		public OutputStream getOutputStream() {
+			return out.output;
+		}
+
+		public void close() {
+			in.close();
+			out.close();
+		}
+	}
+
+	/**
+	 * A ring buffer, read from one side and written to from the other.
+	 */
+	private static class Pipe {
+		private final byte[] buffer = new byte[PIPE_SIZE];
+		private int start = 0;
+		private int size = 0;
+		private boolean closed = false;
+
+		final InputStream input = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return Pipe.this.read(b, off, len);
+			}
+
+			@Override
+			public void close() {
+				Pipe.this.close();
+			}
+		};
+
+		final OutputStream output = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				Pipe.this.write(b, off, len);
+			}
+
+			@Override
+			public void close() {
+				Pipe.this.close();
+			}
+		};
+
+		synchronized int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			try {
+				while (size == 0) {
+					if (closed) {
+						return -1;
+					}
+					wait();
+				}
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while reading");
+			}
+			int n = Math.min(len, Math.min(size, buffer.length - start));
+			System.arraycopy(buffer, start, b, off, n);
+			start = (start + n) % buffer.length;
+			size -= n;
+			notifyAll();
+			return n;
+		}
+
+		synchronized void write(byte[] b, int off, int len) throws IOException {
+			try {
+				while (len > 0) {
+					while (size == buffer.length && !closed) {
+						wait();
+					}
+					if (closed) {
+						throw new IOException("Pipe closed");
+					}
+					int end = (start + size) % buffer.length;
+					int n = Math.min(len, Math.min(buffer.length - size, buffer.length - end));
+					System.arraycopy(b, off, buffer, end, n);
+					size += n;
+					off += n;
+					len -= n;
+					notifyAll();
+				}
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while writing");
+			}
+		}
+
+		synchronized void close() {
+			closed = true;
+			notifyAll();
+		}
+	}
+}
@@ -110,6 +110,7 @@ public class PeerList implements PeerListListener, ConnectionInfoListener {
 		public static String hostName;
 		public static String hostId;
 		public static boolean isGroupOwner;
+		public static int groupSize;
 
 		public static void set(Intent intent, SynCarnet synCarnet, String host, boolean isGroupOwner) {
 			ServiceStatic.intent = intent;
@@ -123,6 +124,10 @@ public class PeerList implements PeerListListener, ConnectionInfoListener {
 			ServiceStatic.hostId = hostId;
 		}
 
+		public static void setGroupSize(int groupSize) {
+			ServiceStatic.groupSize = groupSize;
+		}
+
 		public static Intent getIntent() {
 			return ServiceStatic.intent;
 		}
@@ -147,6 +152,10 @@ public class PeerList implements PeerListListener, ConnectionInfoListener {
 			return ServiceStatic.isGroupOwner;
 		}
 
+		public static int getGroupSize() {
+			return ServiceStatic.groupSize;
+		}
+
 
 	}
 
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2014 Nicolas Miller, Florian Paindorge
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package fr.syncarnet.sync;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import fr.syncarnet.tasks.*;
+
+/**
+ * A task list saved in the WireCodec format, so that sending the whole list
+ * to a new peer is a copy of the file rather than an encoding of the list.
+ * The tasks changed since the snapshot are sent after it, found with the
+ * MerkleTree of the list when it was saved.
+ *
+ * The file starts with the digest of the list, so that a snapshot read back
+ * is only used with the list it was made of. It is kept open, a snapshot
+ * written over it later does not change what this one sends, and it is only
+ * closed once the sends from it are over.
+ */
+public class Snapshot {
+	/** Past this number of changed leaves of the MerkleTree the snapshot is too old to be worth it */
+	public static final int MAX_CHANGED_LEAVES = MerkleTree.LEAVES / 8;
+
+	// The digest of the list comes before it
+	private static final int HEADER = 24;
+
+	private final FileChannel channel;
+	private final long length;
+	private final MerkleTree tree;
+	private final DeletedTasks deleted;
+	// Sends from the file going on, and whether it was replaced
+	private int users = 0;
+	private boolean closed = false;
+
+	private Snapshot(FileChannel channel, TaskList tl) throws IOException {
+		this.channel = channel;
+		this.length = channel.size() - HEADER;
+		this.tree = tl.merkleTree();
+		this.deleted = new DeletedTasks(tl.getDeletedTasks());
+	}
+
+	/**
+	 * Writes a list to a file, through a temporary file so that a snapshot
+	 * being sent is never cut short. Snapshots of the same file must be
+	 * written one at a time.
+	 */
+	public static Snapshot write(File file, TaskList tl) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			Digest digest = tl.digest();
+			out.writeInt(digest.getTasks());
+			out.writeInt(digest.getDeleted());
+			out.writeLong(digest.getTasksHash());
+			out.writeLong(digest.getDeletedHash());
+			WireCodec.write(out, tl);
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			throw new IOException("Could not replace " + file);
+		}
+		return new Snapshot(new RandomAccessFile(file, "r").getChannel(), tl);
+	}
+
+	/**
+	 * Opens the snapshot written with a list read back from disk, returns
+	 * null if there is none or if it was made of another list.
+	 */
+	public static Snapshot open(File file, TaskList tl) throws IOException {
+		if (!file.exists()) {
+			return null;
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			Digest digest = new Digest(raf.readInt(), raf.readInt(), raf.readLong(), raf.readLong());
+			if (digest.equals(tl.digest())) {
+				return new Snapshot(raf.getChannel(), tl);
+			}
+		} catch (EOFException e) {
+			// Cut short, it is written again with the list
+		}
+		raf.close();
+		return null;
+	}
+
+	/**
+	 * Returns the size of the snapshot in bytes.
+	 */
+	public long length() {
+		return length;
+	}
+
+	/**
+	 * Returns what changed in a list since the snapshot, the tasks and
+	 * tombstones of the leaves which differ. Returns null when the snapshot
+	 * is too old, or when a task it holds as deleted was restored since,
+	 * as its tombstone would come before it.
+	 */
+	public TaskList delta(TaskList tl) {
+		MerkleTree now = tl.merkleTree();
+		boolean[] changed = new boolean[MerkleTree.LEAVES];
+		int n = 0;
+		for (int i = 0; i < MerkleTree.FANOUT; i++) {
+			long[] then = tree.getLeaves(i);
+			long[] leaves = now.getLeaves(i);
+			for (int j = 0; j < MerkleTree.FANOUT; j++) {
+				if (then[j] != leaves[j]) {
+					changed[i * MerkleTree.FANOUT + j] = true;
+					n++;
+				}
+			}
+		}
+		if (n > MAX_CHANGED_LEAVES) {
+			return null;
+		}
+		TaskList delta = tl.inBuckets(changed);
+		for (Task t : delta) {
+			if (deleted.contains(t.getUUID())) {
+				return null;
+			}
+		}
+		return delta;
+	}
+
+	/**
+	 * Copies the snapshot to a stream, without decoding it.
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(8192);
+		long position = 0;
+		while (position < length) {
+			buffer.clear();
+			int n = channel.read(buffer, HEADER + position);
+			if (n < 0) {
+				throw new EOFException("Snapshot cut short");
+			}
+			out.write(buffer.array(), 0, n);
+			position += n;
+		}
+	}
+
+	/**
+	 * Hands a part of the snapshot to the kernel, which copies it to the
+	 * target without going through the heap.
+	 * @return The number of bytes written, maybe fewer than asked
+	 */
+	public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+		return channel.transferTo(HEADER + position, count, target);
+	}
+
+	/**
+	 * Keeps the file open until release is called, returns false if the
+	 * snapshot was closed.
+	 */
+	public synchronized boolean acquire() {
+		if (closed) {
+			return false;
+		}
+		users++;
+		return true;
+	}
+
+	public synchronized void release() throws IOException {
+		users--;
+		if (closed && users == 0) {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Closes the file once the snapshot is replaced, or once the sends
+	 * still using it are over.
+	 */
+	public synchronized void close() throws IOException {
+		closed = true;
+		if (users == 0) {
+			channel.close();
+		}
+	}
+}
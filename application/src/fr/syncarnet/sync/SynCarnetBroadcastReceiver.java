@@ -104,6 +104,8 @@ public class SynCarnetBroadcastReceiver extends BroadcastReceiver {
 				WifiP2pGroup group = (WifiP2pGroup) intent.getParcelableExtra(WifiP2pManager.EXTRA_WIFI_P2P_GROUP);
 				if (group != null) {
 					ServiceStatic.setDevice(group.getOwner().deviceName, group.getOwner().deviceAddress);
+					// The members of a larger group sync in rounds
+					ServiceStatic.setGroupSize(group.isGroupOwner() ? group.getClientList().size() : 0);
 				}
 
 				// we are connected with the other device, request connection
@@ -24,6 +24,7 @@ import fr.syncarnet.*;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
@@ -34,14 +35,12 @@ import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.util.Arrays;
-import java.util.UUID;
 import java.util.Random;
 import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.os.Bundle;
 import android.os.Handler;
@@ -60,16 +59,6 @@ public class SyncBTService {
 	private static final String TAG = "SynCarnet";
 	private static final boolean D = true;
 
-	// Name for the SDP record when creating server socket
-	private static final String NAME_SECURE = "SynCarnetSecure";
-	private static final String NAME_INSECURE = "SynCarnetInsecure";
-
-	// Unique UUID for this application
-	private static final UUID MY_UUID_SECURE =
-		UUID.fromString("aa87c0d0-afac-11de-8a39-0850200c9a65");
-	private static final UUID MY_UUID_INSECURE =
-		UUID.fromString("ace255c0-200a-11e0-ac64-0850200c9a66");
-
 	// Member fields
 	private final BluetoothAdapter mAdapter;
 	private final Handler mHandler;
@@ -81,9 +70,28 @@ public class SyncBTService {
 	private int mState;
 	private SynCarnet synCarnet;
 	private TaskList originalTL;
-	private byte[] receivedTLBytes;
+	private TaskMerger merger;
+	// Set by the receiving and sending threads, read by the last one done
+	private volatile boolean listReceived;
+	// What was agreed with the peer, known once the receiving thread has
+	// talked with it
+	private CountDownLatch mHello;
+	private volatile SyncProtocol.Plan mPlan;
 	private BluetoothDevice device;
 	private Boolean isServer;
+	private int mPendingHalves;
+	private volatile boolean listSent;
+	// Carries the payloads, kept when the connection drops so that the
+	// transfer goes on once the peer is back
+	private volatile ChunkSession mSession;
+	private boolean mSecure;
+	// Incremented at each sync, the threads of an abandoned one are ignored
+	private int mSync = 0;
+
+	// Delay before connecting again to a peer which may not listen yet
+	private static final long RETRY_DELAY = 2000;
+	// Received tasks merged before they are committed to the list
+	private static final int BATCH_SIZE = 500;
 
 	// Constants that indicate the current connection state
 	public static final int STATE_NONE = 0;       // we're doing nothing
@@ -107,41 +115,88 @@ public class SyncBTService {
 		mAdapter = BluetoothAdapter.getDefaultAdapter();
 		mState = STATE_NONE;
 		mHandler = null;
-		originalTL = new TaskList();
-		originalTL.unJsonify(synCarnet.getTasks().jsonify());
+		originalTL = new TaskList(synCarnet.getTasks());
 		Log.d(TAG, "TaskList retrieved");
 	}
 
-	public void setBytes(byte[] buffer) {
-		this.receivedTLBytes = buffer;
+	/**
+	 * Called by the receiving thread once it agreed with the peer on what
+	 * to send, or with null if that failed.
+	 */
+	private void setPlan(SyncProtocol.Plan plan) {
+		mPlan = plan;
+		mHello.countDown();
 	}
 
-	public void endSync(boolean server) {
+	/**
+	 * Called by the sending thread, which needs the plan to know what to
+	 * send.
+	 */
+	private SyncProtocol.Plan awaitPlan() throws IOException {
+		try {
+			mHello.await();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while waiting for the peer");
+		}
+		if (mPlan == null) {
+			throw new IOException("No hello from the peer");
+		}
+		return mPlan;
+	}
+
+	/**
+	 * Whether the peer already has the same tasks, in which case nothing
+	 * is sent.
+	 */
+	private boolean inSync() {
+		return mPlan != null && mPlan.inSync;
+	}
+
+	public void setListReceived() {
+		this.listReceived = true;
+	}
+
+	/**
+	 * Called by the sending and receiving threads when they are done,
+	 * the lists are merged once both halves of the exchange are complete.
+	 */
+	private void halfDone(int sync) {
+		synchronized (this) {
+			if (sync != mSync) {
+				return;
+			}
+			mPendingHalves--;
+			if (mPendingHalves > 0) {
+				return;
+			}
+		}
+		endSync();
+	}
+
+	private void endSync() {
 		Log.d(TAG, "Last step to sync");
-		if (server) {
-			Log.d(TAG, "EndSync server");
+		if (listSent && inSync()) {
+			Log.d(TAG, "Already in sync");
 			synCarnet.savePeer(device.getName(), device.getAddress());
-		} else {
-			try {
-				Log.d(TAG, "Rebuilding task list");
-				String st = (String) bytesToObject(this.receivedTLBytes);
-				Log.d(TAG, "String rebuilt");
-				TaskList receivedTL = new TaskList();
-				Log.d(TAG, "Unjsonifying");
-				receivedTL.unJsonify(st);
-				Log.d(TAG, "Task list rebuilt");
-				TaskList mergedTL = TaskList.merge(receivedTL, originalTL);
-				Log.d(TAG, "Task list merged");
-				synCarnet.runOnUiThread(new SetTaskListRun(synCarnet, mergedTL));
-
-				Log.d(TAG, "Sync done");
-				synCarnet.showToast(synCarnet.getString(R.string.successSync));
-			} catch (IOException e) {
-				Log.e(TAG, "IOException during bytesToObject", e);
-			} catch (ClassNotFoundException e) {
-				Log.e(TAG, "ClassNotFoundException during bytesToObject", e);
-			}
+			synCarnet.showToast(synCarnet.getString(R.string.alreadySynced));
+			return;
 		}
+		if (!this.listReceived) {
+			Log.e(TAG, "Task list not fully received");
+			TaskListTransferService.commitPartial(synCarnet, merger);
+			return;
+		}
+		// The received tasks were merged as they arrived
+		TaskList mergedTL = merger.finish();
+		Log.d(TAG, "Task list merged");
+		synCarnet.runOnUiThread(new SetTaskListRun(synCarnet, mergedTL));
+		// The peer only knows our changes if our own list went through
+		if (listSent) {
+			synCarnet.savePeer(device.getName(), device.getAddress());
+		}
+
+		Log.d(TAG, "Sync done");
+		synCarnet.showToast(synCarnet.getString(R.string.successSync));
 	}
 
 	/**
@@ -192,6 +247,7 @@ public class SyncBTService {
 	 */
 	public synchronized void connect(BluetoothDevice device, boolean secure) {
 		if (D) Log.d(TAG, "Connect to: " + device);
+		mSecure = secure;
 
 		// Cancel any thread attempting to make a connection
 		if (mState == STATE_CONNECTING) {
@@ -210,10 +266,10 @@ public class SyncBTService {
 
 	/**
 	 * Start the ConnectedThread to begin managing a Bluetooth connection
-	 * @param socket  The BluetoothSocket on which the connection was made
+	 * @param socket  The session on which the connection was made
 	 * @param device  The BluetoothDevice that has been connected
 	 */
-	public synchronized void connected(BluetoothSocket socket, BluetoothDevice
+	public synchronized void connected(SyncSession socket, BluetoothDevice
 			device, final String socketType, boolean server) {
 		if (D) Log.d(TAG, "Connected, Socket Type:" + socketType);
 
@@ -234,22 +290,75 @@ public class SyncBTService {
 			mInsecureAcceptThread = null;
 		}
 
+		// The transfer with this peer was interrupted, it may go on
+		ChunkSession session = mSession;
+		if (session != null && session.isSuspended() && this.device != null
+				&& this.device.getAddress().equals(device.getAddress())) {
+			new ResumeThread(socket, socketType).start();
+			setState(STATE_CONNECTED);
+			return;
+		}
+
 		this.device = device;
+		startSync(socket, socketType, null);
+		setState(STATE_CONNECTED);
+	}
 
-		// Start the thread to manage the connection and perform transmissions
-		// chacun a un serveur et un client séparés pour envoyer et recevoir respectivement
-		// le serveur fait d'abord le thread server puis le thread client, l'inverse pour le client ; 
-		// pour permettre de faire les 2 threads à la suite et essayer d'accélérer
-		if (isServer) {
-			mConnectedThreadServer = new ConnectedThreadServer(socket, socketType);
-			mConnectedThreadServer.start();
-		} else {
-			mConnectedThreadClient = new ConnectedThreadClient(socket, socketType);
-			mConnectedThreadClient.start();
+	/**
+	 * Starts the threads exchanging the lists.
+	 * @param session  The session agreed with the peer, or null if the
+	 * receiving thread has to agree on one
+	 */
+	private synchronized void startSync(SyncSession socket, String socketType, ChunkSession session) {
+		// RFCOMM sockets are full duplex: both peers send their list while
+		// receiving the other one, on two threads sharing the socket
+		mSync++;
+		mSession = session;
+		mPendingHalves = 2;
+		merger = new TaskMerger(originalTL);
+		merger.setBatchListener(BATCH_SIZE, mCommitBatch);
+		listReceived = false;
+		listSent = false;
+		mHello = new CountDownLatch(1);
+		mPlan = null;
+		mConnectedThreadServer = new ConnectedThreadServer(socket, socketType);
+		mConnectedThreadClient = new ConnectedThreadClient(socket, socketType, session);
+		mConnectedThreadServer.start();
+		mConnectedThreadClient.start();
+	}
+
+	/**
+	 * Commits the received tasks as they arrive, the most urgent first, so
+	 * that they are kept if the transfer is interrupted.
+	 */
+	private final TaskMerger.BatchListener mCommitBatch = new TaskMerger.BatchListener() {
+		public void onBatch(TaskMerger merger) {
+			Log.d(TAG, "Committing a batch of received tasks");
+			synCarnet.runOnUiThread(new SetTaskListRun(synCarnet, merger.commit()));
 		}
+	};
 
-		setState(STATE_CONNECTED);
-			}
+	/**
+	 * Called when the connection drops during a transfer: the server
+	 * listens again while the client connects again.
+	 */
+	private final ChunkSession.Listener mReconnect = new ChunkSession.Listener() {
+		public void onSuspended(ChunkSession session) {
+			Log.d(TAG, "Connection lost, waiting for the peer to come back");
+			reconnect(session);
+		}
+	};
+
+	private synchronized void reconnect(ChunkSession session) {
+		if (session != mSession || !session.isSuspended()) {
+			return;
+		}
+		if (isServer != null && isServer) {
+			start();
+		} else {
+			connect(device, mSecure);
+		}
+	}
 
 	/**
 	 * Stop all threads
@@ -257,6 +366,11 @@ public class SyncBTService {
 	public synchronized void stop() {
 		if (D) Log.d(TAG, "Stop");
 
+		if (mSession != null) {
+			mSession.abort();
+			mSession = null;
+		}
+
 		if (mConnectThread != null) {
 			mConnectThread.cancel();
 			mConnectThread = null;
@@ -287,14 +401,33 @@ public class SyncBTService {
 	 * Indicate that the connection attempt failed and notify the UI Activity.
 	 */
 	private void connectionFailed() {
-		//à faire
+		ChunkSession session = mSession;
+		if (session == null || !session.isSuspended()) {
+			synCarnet.showToast(synCarnet.getString(R.string.connectFailed));
+			return;
+		}
+		// The peer may not listen again yet, try until the session expires
+		try {
+			Thread.sleep(RETRY_DELAY);
+		} catch (InterruptedException e) {
+			return;
+		}
+		reconnect(session);
 	}
 
 	/**
 	 * Indicate that the connection was lost and notify the UI Activity.
 	 */
-	private void connectionLost() {
-		//à faire
+	private void connectionLost(int sync) {
+		synchronized (this) {
+			if (sync != mSync) {
+				return;
+			}
+			if (mSession != null) {
+				mSession.abort();
+			}
+		}
+		synCarnet.showToast(synCarnet.getString(R.string.IOException));
 	}
 
 	/**
@@ -303,27 +436,13 @@ public class SyncBTService {
 	 * (or until cancelled).
 	 */
 	private class AcceptThread extends Thread {
-		// The local server socket
-		private final BluetoothServerSocket mmServerSocket;
+		// Listens on the local server socket
+		private final BluetoothTransport mmTransport;
 		private String mSocketType;
 
 		public AcceptThread(boolean secure) {
-			BluetoothServerSocket tmp = null;
 			mSocketType = secure ? "Secure":"Insecure";
-
-			// Create a new listening server socket
-			try {
-				if (secure) {
-					tmp = mAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE,
-							MY_UUID_SECURE);
-				} else {
-					tmp = mAdapter.listenUsingInsecureRfcommWithServiceRecord(
-							NAME_INSECURE, MY_UUID_INSECURE);
-				}
-			} catch (IOException e) {
-				Log.e(TAG, "Socket Type: " + mSocketType + "listen() failed", e);
-			}
-			mmServerSocket = tmp;
+			mmTransport = new BluetoothTransport(mAdapter, null, secure);
 		}
 
 		public void run() {
@@ -331,14 +450,14 @@ public class SyncBTService {
 					"BEGIN mAcceptThread" + this);
 			setName("AcceptThread" + mSocketType);
 
-			BluetoothSocket socket = null;
+			BluetoothTransport.BluetoothSession socket = null;
 
 			// Listen to the server socket if we're not connected
 			while (mState != STATE_CONNECTED) {
 				try {
 					// This is a blocking call and will only return on a
 					// successful connection or an exception
-					socket = mmServerSocket.accept();
+					socket = (BluetoothTransport.BluetoothSession) mmTransport.accept();
 				} catch (IOException e) {
 					Log.e(TAG, "Socket Type: " + mSocketType + "accept() failed", e);
 					break;
@@ -375,7 +494,7 @@ public class SyncBTService {
 		public void cancel() {
 			if (D) Log.d(TAG, "Socket Type" + mSocketType + "cancel " + this);
 			try {
-				mmServerSocket.close();
+				mmTransport.close();
 			} catch (IOException e) {
 				Log.e(TAG, "Socket Type" + mSocketType + "close() of server failed", e);
 			}
@@ -389,52 +508,30 @@ public class SyncBTService {
 	 * succeeds or fails.
 	 */
 	private class ConnectThread extends Thread {
-		private final BluetoothSocket mmSocket;
+		// Gets a BluetoothSocket for a connection with the given
+		// BluetoothDevice
+		private final BluetoothTransport mmTransport;
 		private final BluetoothDevice mmDevice;
 		private String mSocketType;
 
 		public ConnectThread(BluetoothDevice device, boolean secure) {
 			mmDevice = device;
-			BluetoothSocket tmp = null;
 			mSocketType = secure ? "Secure" : "Insecure";
-
-			// Get a BluetoothSocket for a connection with the
-			// given BluetoothDevice
-			try {
-				if (secure) {
-					tmp = device.createRfcommSocketToServiceRecord(
-							MY_UUID_SECURE);
-				} else {
-					tmp = device.createInsecureRfcommSocketToServiceRecord(
-							MY_UUID_INSECURE);
-				}
-			} catch (IOException e) {
-				Log.e(TAG, "Socket Type: " + mSocketType + "create() failed", e);
-			}
-			mmSocket = tmp;
+			mmTransport = new BluetoothTransport(mAdapter, device, secure);
 		}
 
 		public void run() {
 			Log.d(TAG, "BEGIN mConnectThread SocketType:" + mSocketType);
 			setName("ConnectThread" + mSocketType);
 
-			// Always cancel discovery because it will slow down a connection
-			mAdapter.cancelDiscovery();
-
-			// Make a connection to the BluetoothSocket
+			// Make a connection to the BluetoothSocket, the socket is closed
+			// if it fails
+			SyncSession socket;
 			try {
-				// This is a blocking call and will only return on a
-				// successful connection or an exception
-				mmSocket.connect();
+				socket = mmTransport.connect();
 				SyncBTService.this.isServer = false;
 			} catch (IOException e) {
-				// Close the socket
-				try {
-					mmSocket.close();
-				} catch (IOException e2) {
-					Log.e(TAG, "Unable to close() " + mSocketType +
-							" socket during connection failure", e2);
-				}
+				Log.e(TAG, "Socket Type: " + mSocketType + " connect() failed", e);
 				connectionFailed();
 				return;
 			}
@@ -445,12 +542,12 @@ public class SyncBTService {
 			}
 
 			// Start the connected thread
-			connected(mmSocket, mmDevice, mSocketType, false);
+			connected(socket, mmDevice, mSocketType, false);
 		}
 
 		public void cancel() {
 			try {
-				mmSocket.close();
+				mmTransport.close();
 			} catch (IOException e) {
 				Log.e(TAG, "close() of connect " + mSocketType + " socket failed", e);
 			}
@@ -462,19 +559,21 @@ public class SyncBTService {
 	 * It handles all incoming and outgoing transmissions.
 	 */
 	private class ConnectedThreadServer extends Thread {
-		private final BluetoothSocket mmSocket;
+		private final SyncSession mmSocket;
 		private final String mmSocketType;
 		//private final InputStream mmInStream;
 		private final OutputStream mmOutStream;
+		private final int mmSync;
 
-		public ConnectedThreadServer(BluetoothSocket socket, String socketType) {
+		public ConnectedThreadServer(SyncSession socket, String socketType) {
 			Log.d(TAG, "Create ConnectedThreadServer: " + socketType);
 			mmSocket = socket;
 			mmSocketType = socketType;
+			mmSync = mSync;
 			//InputStream tmpIn = null;
 			OutputStream tmpOut = null;
 
-			// Get the BluetoothSocket input and output streams
+			// Get the session input and output streams
 			try {
 				//tmpIn = socket.getInputStream();
 				tmpOut = socket.getOutputStream();
@@ -489,43 +588,40 @@ public class SyncBTService {
 		public void run() {
 			Log.d(TAG, "BEGIN mConnectedThreadServer");
 			byte[] buffer;
+			ChunkSession session = null;
 
 			try {
 				synCarnet.showToast(synCarnet.getString(R.string.connectingTo) + device.getName());
-				Log.d(TAG, "Jsonifying");
-				String TLString;
-				if (synCarnet.knowPeer(device.getAddress())) {
-					Log.d(TAG, "Device already known");
-					SyncedDevice connectedPeer = synCarnet.getPeer(device.getAddress());
-					TLString = connectedPeer.buildDifferentialTaskList(originalTL).jsonify();
-					Log.d(TAG, "Built differential TaskList");
-				} else {
-					Log.d(TAG, "Device not already known");
-					TLString = originalTL.jsonify();
-				}
-				Log.d(TAG, "Jsonifyed");
-				Log.d(TAG, "ObjectToBytes");
-				byte[] bytes = ObjectToBytes((Object) TLString);
-				int TLSize = bytes.length;
-				Log.d(TAG, "Server TL size : " + TLSize);
-				DataOutputStream d = new DataOutputStream(new BufferedOutputStream(mmOutStream,400));
-				d.writeInt(TLSize);
-				Log.d(TAG, "TL size sent");
-				for (int i=0 ; i<bytes.length ; i++) {
-					d.write(bytes[i]);
-					d.flush();
-					if (i % 1000 == 0) Log.d(TAG,"Sent "+i+" bytes");
+				// The receiving thread talks with the peer first
+				SyncProtocol.Plan plan = SyncBTService.this.awaitPlan();
+				if (plan.inSync) {
+					SyncBTService.this.listSent = true;
+					SyncBTService.this.halfDone(mmSync);
+					return;
 				}
+				// Only what the peer does not have
+				TaskList sentTL = plan.select(originalTL);
+				Log.d(TAG, "Sending " + sentTL.size() + " tasks" + (plan.sendsOperations() ? " with their operations" : ""));
+				// Encoded straight into the chunks, the payload is never held in memory
+				session = mSession;
+				OutputStream f = session.getOutputStream(new TransferListener() {
+					public void onProgress(long sent) {
+						Log.d(TAG, "Sent " + sent + " bytes");
+					}
+				});
+				SyncProtocol.send(f, sentTL, plan, SyncProtocol.BLUETOOTH_SPEED);
+				// Returns once the peer received everything
+				f.close();
+				SyncBTService.this.listSent = true;
 				Log.d(TAG,"Task list sent");
 			} catch (IOException e) {
 				Log.e(TAG, "Exception during write", e);
+				// The receiving thread would wait for acknowledgements
+				if (session != null) {
+					session.abort();
+				}
 			}
-			if (SyncBTService.this.isServer) {
-				mConnectedThreadClient = new ConnectedThreadClient(mmSocket, mmSocketType);
-				mConnectedThreadClient.start();
-			}
-
-			SyncBTService.this.endSync(true);
+			SyncBTService.this.halfDone(mmSync);
 		}
 
 		public void cancel() {
@@ -543,28 +639,33 @@ public class SyncBTService {
 	 * It handles all incoming and outgoing transmissions.
 	 */
 	private class ConnectedThreadClient extends Thread {
-		private final BluetoothSocket mmSocket;
+		private final SyncSession mmSocket;
 		private final String mmSocketType;
 		private final InputStream mmInStream;
-		//private final OutputStream mmOutStream;
+		// Only used before the sending thread starts writing
+		private final OutputStream mmOutStream;
+		private final int mmSync;
+		private ChunkSession mmSession;
 
-		public ConnectedThreadClient(BluetoothSocket socket, String socketType) {
+		public ConnectedThreadClient(SyncSession socket, String socketType, ChunkSession session) {
 			Log.d(TAG, "Create ConnectedThreadClient: " + socketType);
 			mmSocket = socket;
 			mmSocketType = socketType;
+			mmSync = mSync;
+			mmSession = session;
 			InputStream tmpIn = null;
-			//OutputStream tmpOut = null;
+			OutputStream tmpOut = null;
 
-			// Get the BluetoothSocket input and output streams
+			// Get the session input and output streams
 			try {
 				tmpIn = socket.getInputStream();
-				//tmpOut = socket.getOutputStream();
+				tmpOut = socket.getOutputStream();
 			} catch (IOException e) {
 				Log.e(TAG, "Temp sockets not created", e);
 			}
 
 			mmInStream = tmpIn;
-			//mmOutStream = tmpOut;
+			mmOutStream = tmpOut;
 		}
 
 		public void run() {
@@ -574,32 +675,41 @@ public class SyncBTService {
 			// Keep listening to the InputStream while connected
 			//boolean received = false;
 			try {
-				DataInputStream d = new DataInputStream(new BufferedInputStream(mmInStream,400));
-				int TLSize = d.readInt();
-				Log.d(TAG, "Client TL size : " + TLSize);
-				int bytesRead;
-				byte[] dataBytes = new byte[TLSize];
-				byte[] tmpByte = new byte[1];
-				for(bytesRead=0; bytesRead < TLSize; bytesRead++) {
-					d.read(tmpByte, 0, 1);
-					dataBytes[bytesRead] = tmpByte[0];
-					if (bytesRead % 1000 == 0) Log.d(TAG,"Received "+bytesRead+" bytes");
+				SyncProtocol.Plan plan = null;
+				try {
+					if (mmSession == null) {
+						mmSession = ChunkSession.connect(mmInStream, mmOutStream, null, mReconnect);
+						mSession = mmSession;
+					}
+					plan = SyncProtocol.negotiate(mmInStream, mmOutStream, originalTL);
+					Log.d(TAG, "Peer task list : " + plan.hello.digest);
+				} finally {
+					// Never leave the sending thread waiting
+					SyncBTService.this.setPlan(plan);
+				}
+				if (plan.inSync) {
+					// Nothing else comes
+					SyncBTService.this.halfDone(mmSync);
+					return;
 				}
-				Log.d(TAG, "Data received");
-				Log.d(TAG, bytesRead + " bytes received");
-				SyncBTService.this.setBytes(dataBytes);
-				Log.d(TAG, "Buffer set in outer class ");
+				InputStream f = mmSession.getInputStream(new TransferListener() {
+					public void onProgress(long received) {
+						Log.d(TAG, "Received " + received + " bytes");
+					}
+				});
+				// Decoded and merged as the chunks arrive
+				SyncProtocol.receive(f, merger, plan);
+				if (f.read() != -1) {
+					throw new IOException("Unexpected data after the task list");
+				}
+				SyncBTService.this.setListReceived();
+				// The acknowledgements of what we sent come on this side
+				mmSession.finish();
 			} catch (IOException e) {
 				Log.e(TAG, "Disconnected", e);
-				connectionLost();
-			}
-			if (!SyncBTService.this.isServer) {
-				mConnectedThreadServer = new ConnectedThreadServer(mmSocket, mmSocketType);
-				mConnectedThreadServer.start();
+				connectionLost(mmSync);
 			}
-
-			SyncBTService.this.endSync(false);
-
+			SyncBTService.this.halfDone(mmSync);
 		}
 
 		public void cancel() {
@@ -612,17 +722,43 @@ public class SyncBTService {
 		}
 	}
 
-	private static byte[] ObjectToBytes(Object object) throws IOException {
-		ByteArrayOutputStream b = new ByteArrayOutputStream();
-		ObjectOutputStream o = new ObjectOutputStream(b);
-		o.writeObject(object);
-		return b.toByteArray();
-	}
+	/**
+	 * This thread runs when a peer whose transfer was interrupted connects
+	 * again. The transfer goes on if the peer still has the session, a new
+	 * sync starts otherwise.
+	 */
+	private class ResumeThread extends Thread {
+		private final SyncSession mmSocket;
+		private final String mmSocketType;
+
+		public ResumeThread(SyncSession socket, String socketType) {
+			mmSocket = socket;
+			mmSocketType = socketType;
+		}
 
-	private static Object bytesToObject(byte[] bytes) throws IOException, ClassNotFoundException {
-		ByteArrayInputStream b = new ByteArrayInputStream(bytes);
-		ObjectInputStream o = new ObjectInputStream(b);
-		return  o.readObject();
+		public void run() {
+			Log.d(TAG, "BEGIN mResumeThread");
+			setName("ResumeThread" + mmSocketType);
+			ChunkSession suspended = mSession;
+			try {
+				ChunkSession session = ChunkSession.connect(mmSocket.getInputStream(),
+						mmSocket.getOutputStream(), suspended, mReconnect);
+				if (session == suspended) {
+					Log.d(TAG, "Transfer resumed");
+					return;
+				}
+				Log.d(TAG, "The peer dropped the transfer, starting again");
+				startSync(mmSocket, mmSocketType, session);
+			} catch (IOException e) {
+				Log.e(TAG, "Could not resume the transfer", e);
+				try {
+					mmSocket.close();
+				} catch (IOException e2) {
+					Log.e(TAG, "close() of resumed socket failed", e2);
+				}
+				connectionFailed();
+			}
+		}
 	}
 
 }
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2014 Nicolas Miller, Florian Paindorge
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package fr.syncarnet.sync;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+import fr.syncarnet.tasks.*;
+
+/**
+ * Syncs a task list with a peer over a session, whatever the transport.
+ * Both peers may run it, or one of them may be a SyncServer.
+ */
+public class SyncExchange {
+	private SyncExchange() {
+	}
+
+	public static TaskList run(SyncSession session, TaskList local, TaskMerger merger, long linkSpeed) throws IOException {
+		return run(session, local, merger, linkSpeed, null);
+	}
+
+	/**
+	 * Negotiates with the peer then sends what it does not have while
+	 * receiving what it sends, so that neither side waits for the other to
+	 * read. The session is left open.
+	 * @param merger  Merges what is received with the local list, what it
+	 * merged so far is kept if the sync fails
+	 * @param snapshot  The last snapshot of the local list, sent when the
+	 * peer needs all of it, or null
+	 * @return The merged list, or null if both peers already had the same
+	 * tasks
+	 */
+	public static TaskList run(SyncSession session, final TaskList local, TaskMerger merger, final long linkSpeed,
+			final Snapshot snapshot) throws IOException {
+		InputStream in = session.getInputStream();
+		final OutputStream out = session.getOutputStream();
+		final SyncProtocol.Plan plan = SyncProtocol.negotiate(in, out, local);
+		if (plan.inSync) {
+			return null;
+		}
+
+		final IOException[] failure = new IOException[1];
+		Thread sender = new Thread("SyncExchange sender") {
+			public void run() {
+				try {
+					// Only what the peer does not have
+					SyncProtocol.send(out, local, plan, linkSpeed, snapshot);
+				} catch (IOException e) {
+					failure[0] = e;
+				}
+			}
+		};
+		sender.start();
+		try {
+			// Merged while it is received
+			SyncProtocol.receive(new BufferedInputStream(in), merger, plan);
+		} catch (IOException e) {
+			// The sender may be blocked on a peer which stopped reading
+			session.close();
+			throw e;
+		}
+		try {
+			sender.join();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while sending");
+		}
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+		return merger.finish();
+	}
+}
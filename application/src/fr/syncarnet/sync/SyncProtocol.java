@@ -0,0 +1,545 @@
+/*
+ * Copyright (C) 2013-14 Nicolas Miller, Florian Paindorge
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package fr.syncarnet.sync;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import fr.syncarnet.tasks.*;
+
+/**
+ * What both peers exchange over a connection, whatever the transport.
+ *
+ * Each peer first sends a hello made of a magic number, the protocol version,
+ * the features it supports and the digest of its task list. The features
+ * used are those supported by both. When both digests are equal the peers
+ * are already in sync and nothing else is sent.
+ *
+ * Otherwise peers which keep an OperationLog send each other the device they
+ * are and their VersionVector. If they met before, each one sends the
+ * operations the other has not seen, with only the fields of the tasks they
+ * changed. On a first contact the peers find the
+ * parts of their lists which differ with their MerkleTree instead, and each
+ * sends a task list holding these parts. Either is sent as an encoding byte
+ * followed by the WireCodec format, as is or compressed with raw DEFLATE
+ * and a preset dictionary. When the whole list goes, it may be sent as a
+ * Snapshot followed by a second list of what changed since, which wins over
+ * the first.
+ */
+public final class SyncProtocol {
+	public static final int VERSION = 5;
+	/** The peer can read DEFLATE compressed task lists */
+	public static final int CAP_DEFLATE = 0x01;
+	/** The peer keeps an operation log and can send its operations */
+	public static final int CAP_OPLOG = 0x02;
+	/** The peer can read a snapshot followed by its changes */
+	public static final int CAP_SNAPSHOT = 0x04;
+	/** Features supported by this version */
+	public static final int CAPABILITIES = CAP_DEFLATE | CAP_OPLOG | CAP_SNAPSHOT;
+
+	/** Typical throughput of an RFCOMM link, in bytes per second */
+	public static final long BLUETOOTH_SPEED = 30000;
+	/** Typical throughput of a Wi-Fi Direct link, in bytes per second */
+	public static final long WIFI_SPEED = 4000000;
+	/** Links faster than this go faster than DEFLATE on a phone */
+	public static final long FAST_LINK = 1000000;
+	/** Under this number of tasks and tombstones compression does not pay */
+	public static final int MIN_COMPRESSED_ITEMS = 32;
+
+	private static final int MAGIC = 0x5343; // "SC"
+	private static final int RAW = 0;
+	private static final int DEFLATE = 1;
+	static final int SNAPSHOT = 2;
+
+	// The field names no longer travel with the binary format, the words
+	// which come back in descriptions and project names are what is left
+	private static final byte[] DICTIONARY = utf8(
+			"Personal Home Work Shopping Travel Health School Family Ideas "
+			+ "Perso Maison Travail Courses Voyage Santé École Famille Idées "
+			+ "call buy send write read pay book meeting email report "
+			+ "appeler acheter envoyer écrire lire payer réserver réunion mail rapport "
+			+ "the to for with and de la le les pour avec et ");
+
+	private SyncProtocol() {
+	}
+
+	/**
+	 * What a peer says about itself before sending anything else.
+	 */
+	public static class Hello {
+		/** Features supported by both peers */
+		public final int capabilities;
+		/** Digest of the whole task list of the peer */
+		public final Digest digest;
+
+		Hello(int capabilities, Digest digest) {
+			this.capabilities = capabilities;
+			this.digest = digest;
+		}
+	}
+
+	/**
+	 * What both peers agreed to send each other.
+	 */
+	public static class Plan {
+		/** The hello of the peer */
+		public final Hello hello;
+		/** Whether both peers already have the same tasks */
+		public final boolean inSync;
+		// The leaves of the MerkleTree which differ, null to send operations
+		private final boolean[] leaves;
+		// What the peer has seen, null if it keeps no operation log
+		private final VersionVector peerSeen;
+		private final long peerClock;
+
+		Plan(Hello hello, boolean inSync, boolean[] leaves, VersionVector peerSeen, long peerClock) {
+			this.hello = hello;
+			this.inSync = inSync;
+			this.leaves = leaves;
+			this.peerSeen = peerSeen;
+			this.peerClock = peerClock;
+		}
+
+		/**
+		 * Whether the peers send their operations rather than the parts of
+		 * their lists which differ.
+		 */
+		public boolean sendsOperations() {
+			return leaves == null;
+		}
+
+		/**
+		 * Returns what to send of a task list.
+		 */
+		public TaskList select(TaskList tl) {
+			return leaves != null ? tl.inBuckets(leaves) : tl.unseenBy(peerSeen);
+		}
+
+		/**
+		 * Whether select returns the whole list, the leaves left out being
+		 * empty.
+		 */
+		public boolean selectsAll(TaskList tl) {
+			if (leaves == null) {
+				return false;
+			}
+			MerkleTree tree = tl.merkleTree();
+			for (int i = 0; i < MerkleTree.FANOUT; i++) {
+				long[] l = tree.getLeaves(i);
+				for (int j = 0; j < MerkleTree.FANOUT; j++) {
+					if (!leaves[i * MerkleTree.FANOUT + j] && l[j] != 0) {
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Finds out what both peers have to send, the same thread sends and
+	 * receives. Nothing else is sent when the plan says the peers are in sync.
+	 */
+	public static Plan negotiate(InputStream in, OutputStream out, TaskList tl) throws IOException {
+		Hello hello = hello(in, out, tl.digest());
+		if (hello.digest.equals(tl.digest())) {
+			return new Plan(hello, true, null, null, 0);
+		}
+		if ((hello.capabilities & CAP_OPLOG) == 0) {
+			return new Plan(hello, false, reconcile(in, out, tl.merkleTree()), null, 0);
+		}
+
+		OperationLog log = tl.getLog();
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out, 256));
+		writeLogState(dos, log);
+		dos.flush();
+		DataInputStream dis = new DataInputStream(in);
+		long peer = dis.readLong();
+		long peerClock = dis.readLong();
+		VersionVector peerSeen = readVersionVector(dis);
+
+		if (met(log, peer, peerSeen)) {
+			return new Plan(hello, false, null, peerSeen, peerClock);
+		}
+		// Most of the operations of a new peer would be for tasks both have
+		return new Plan(hello, false, reconcile(in, out, tl.merkleTree()), peerSeen, peerClock);
+	}
+
+	/**
+	 * Sends a list returned by the select method of the plan, the stream
+	 * is flushed but not closed.
+	 */
+	public static void send(OutputStream out, TaskList selected, Plan plan, long linkSpeed) throws IOException {
+		writePayload(out, selected, plan.sendsOperations(), shouldCompress(selected, plan.hello.capabilities, linkSpeed));
+	}
+
+	/**
+	 * Sends what the peer does not have of a list, from a snapshot of the
+	 * list when the whole list goes. The stream is flushed but not closed.
+	 * @param snapshot  The last snapshot of the list, or null
+	 */
+	public static void send(OutputStream out, TaskList tl, Plan plan, long linkSpeed, Snapshot snapshot) throws IOException {
+		TaskList delta = snapshotDelta(snapshot, tl, plan, linkSpeed);
+		if (delta == null || !snapshot.acquire()) {
+			send(out, plan.select(tl), plan, linkSpeed);
+			return;
+		}
+		try {
+			out.write(SNAPSHOT);
+			snapshot.writeTo(out);
+			WireCodec.write(out, delta);
+		} finally {
+			snapshot.release();
+		}
+	}
+
+	/**
+	 * Returns what to send after the snapshot of a list, or null if the
+	 * list should be sent as usual: when not all of it goes, when it is
+	 * compressed, when the peer does not read snapshots or when the
+	 * snapshot is too old.
+	 */
+	static TaskList snapshotDelta(Snapshot snapshot, TaskList tl, Plan plan, long linkSpeed) {
+		if (snapshot == null
+				|| (plan.hello.capabilities & CAP_SNAPSHOT) == 0
+				|| shouldCompress(tl, plan.hello.capabilities, linkSpeed)
+				|| !plan.selectsAll(tl)) {
+			return null;
+		}
+		return snapshot.delta(tl);
+	}
+
+	/**
+	 * Receives what the peer sends according to the plan, each task is given
+	 * to the merger as soon as it is decoded. The stream should be buffered.
+	 */
+	public static void receive(InputStream in, TaskMerger merger, Plan plan) throws IOException {
+		readPayload(in, merger, plan.sendsOperations());
+		if (plan.peerSeen != null) {
+			merger.addSeen(plan.peerSeen, plan.peerClock);
+		}
+	}
+
+	/**
+	 * Sends the device, clock and VersionVector of a log, the peer reads
+	 * them as two longs and a vector.
+	 */
+	static void writeLogState(DataOutputStream out, OperationLog log) throws IOException {
+		out.writeLong(log.getDevice());
+		out.writeLong(log.getClock());
+		writeVersionVector(out, log.getSeen());
+	}
+
+	/**
+	 * Whether two peers met before, both come to the same conclusion.
+	 */
+	static boolean met(OperationLog log, long peer, VersionVector peerSeen) {
+		return peerSeen.get(log.getDevice()) > 0 || log.getSeen().get(peer) > 0;
+	}
+
+	private static void writeVersionVector(DataOutputStream out, VersionVector v) throws IOException {
+		out.writeInt(v.size());
+		for (long device : v.devices()) {
+			out.writeLong(device);
+			out.writeLong(v.get(device));
+		}
+	}
+
+	static VersionVector readVersionVector(DataInputStream in) throws IOException {
+		VersionVector v = new VersionVector();
+		int size = in.readInt();
+		if (size < 0) {
+			throw new IOException("Invalid version vector size " + size);
+		}
+		for (int i = 0; i < size; i++) {
+			v.advance(in.readLong(), in.readLong());
+		}
+		return v;
+	}
+
+	/**
+	 * Sends the hello of this peer with the digest of its task list.
+	 */
+	public static void writeHello(OutputStream out, Digest digest) throws IOException {
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out, 32));
+		dos.writeShort(MAGIC);
+		dos.writeByte(VERSION);
+		dos.writeByte(CAPABILITIES);
+		dos.writeInt(digest.getTasks());
+		dos.writeInt(digest.getDeleted());
+		dos.writeLong(digest.getTasksHash());
+		dos.writeLong(digest.getDeletedHash());
+		dos.flush();
+	}
+
+	/**
+	 * Reads the hello of the peer.
+	 */
+	public static Hello readHello(InputStream in) throws IOException {
+		DataInputStream dis = new DataInputStream(in);
+		if (dis.readUnsignedShort() != MAGIC) {
+			throw new IOException("Not a SynCarnet peer");
+		}
+		int version = dis.readUnsignedByte();
+		if (version != VERSION) {
+			throw new IOException("Unsupported protocol version " + version);
+		}
+		int capabilities = dis.readUnsignedByte() & CAPABILITIES;
+		Digest digest = new Digest(dis.readInt(), dis.readInt(), dis.readLong(), dis.readLong());
+		return new Hello(capabilities, digest);
+	}
+
+	/**
+	 * Exchanges hellos when the same thread sends and receives.
+	 */
+	public static Hello hello(InputStream in, OutputStream out, Digest digest) throws IOException {
+		writeHello(out, digest);
+		return readHello(in);
+	}
+
+	/**
+	 * Walks the MerkleTree of both peers in two rounds and returns the
+	 * leaves which differ. Each peer sends the hashes of the 16 nodes, then
+	 * those of the leaves under the nodes which differ. Both peers compare
+	 * the same hashes so they agree on the result without sending it.
+	 */
+	public static boolean[] reconcile(InputStream in, OutputStream out, MerkleTree tree) throws IOException {
+		DataInputStream dis = new DataInputStream(in);
+		long[] mine = tree.getNodes();
+		int[] nodes = differingNodes(mine, exchange(dis, out, mine));
+		if (nodes.length == 0) {
+			return new boolean[MerkleTree.LEAVES];
+		}
+		long[] myLeaves = leavesOf(tree, nodes);
+		return differingLeaves(nodes, myLeaves, exchange(dis, out, myLeaves));
+	}
+
+	/**
+	 * Returns the nodes whose hashes differ.
+	 */
+	static int[] differingNodes(long[] mine, long[] theirs) {
+		int n = 0;
+		for (int i = 0; i < MerkleTree.FANOUT; i++) {
+			if (mine[i] != theirs[i]) {
+				n++;
+			}
+		}
+		int[] nodes = new int[n];
+		n = 0;
+		for (int i = 0; i < MerkleTree.FANOUT; i++) {
+			if (mine[i] != theirs[i]) {
+				nodes[n++] = i;
+			}
+		}
+		return nodes;
+	}
+
+	/**
+	 * Returns the hashes of the leaves under some nodes, one after the other.
+	 */
+	static long[] leavesOf(MerkleTree tree, int[] nodes) {
+		long[] leaves = new long[nodes.length * MerkleTree.FANOUT];
+		for (int i = 0; i < nodes.length; i++) {
+			System.arraycopy(tree.getLeaves(nodes[i]), 0, leaves, i * MerkleTree.FANOUT, MerkleTree.FANOUT);
+		}
+		return leaves;
+	}
+
+	/**
+	 * Returns the leaves which differ given the hashes of the leaves under
+	 * some nodes, as a mask of all the leaves.
+	 */
+	static boolean[] differingLeaves(int[] nodes, long[] mine, long[] theirs) {
+		boolean[] leaves = new boolean[MerkleTree.LEAVES];
+		for (int i = 0; i < mine.length; i++) {
+			if (mine[i] != theirs[i]) {
+				leaves[nodes[i / MerkleTree.FANOUT] * MerkleTree.FANOUT + i % MerkleTree.FANOUT] = true;
+			}
+		}
+		return leaves;
+	}
+
+	/**
+	 * Sends some hashes and reads as many from the peer.
+	 */
+	private static long[] exchange(DataInputStream in, OutputStream out, long[] hashes) throws IOException {
+		byte[] b = toBytes(hashes);
+		out.write(b);
+		out.flush();
+		in.readFully(b);
+		return toHashes(b);
+	}
+
+	static byte[] toBytes(long[] hashes) {
+		byte[] b = new byte[hashes.length * 8];
+		for (int i = 0; i < hashes.length; i++) {
+			for (int j = 0; j < 8; j++) {
+				b[i * 8 + j] = (byte) (hashes[i] >>> (56 - 8 * j));
+			}
+		}
+		return b;
+	}
+
+	static long[] toHashes(byte[] b) {
+		long[] hashes = new long[b.length / 8];
+		for (int i = 0; i < hashes.length; i++) {
+			long v = 0;
+			for (int j = 0; j < 8; j++) {
+				v = (v << 8) | (b[i * 8 + j] & 0xff);
+			}
+			hashes[i] = v;
+		}
+		return hashes;
+	}
+
+	/**
+	 * Whether a list is worth compressing, given the features agreed with
+	 * the peer and the speed of the link.
+	 */
+	public static boolean shouldCompress(TaskList tl, int capabilities, long linkSpeed) {
+		return (capabilities & CAP_DEFLATE) != 0
+			&& linkSpeed < FAST_LINK
+			&& tl.size() + tl.getDeletedTasks().size() >= MIN_COMPRESSED_ITEMS;
+	}
+
+	/**
+	 * Sends a task list, the stream is flushed but not closed.
+	 */
+	public static void writeTaskList(OutputStream out, TaskList tl, int capabilities, long linkSpeed) throws IOException {
+		writePayload(out, tl, false, shouldCompress(tl, capabilities, linkSpeed));
+	}
+
+	/**
+	 * Receives a task list, each task is given to the merger as soon as
+	 * it is decoded. The stream should be buffered.
+	 */
+	public static void readTaskList(InputStream in, TaskMerger merger) throws IOException {
+		readPayload(in, merger, false);
+	}
+
+	private static void writePayload(OutputStream out, TaskList tl, boolean operations, boolean compress) throws IOException {
+		if (!compress) {
+			out.write(RAW);
+			write(out, tl, operations);
+			return;
+		}
+		out.write(DEFLATE);
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		try {
+			deflater.setDictionary(DICTIONARY);
+			// Flushed once finished, a flush sends a message to SyncServer
+			DeflaterOutputStream dos = new DeflaterOutputStream(new UnflushedOutputStream(out), deflater, 4096);
+			write(dos, tl, operations);
+			dos.finish();
+			out.flush();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static void write(OutputStream out, TaskList tl, boolean operations) throws IOException {
+		if (operations) {
+			WireCodec.writeOperations(out, tl);
+		} else {
+			WireCodec.write(out, tl);
+		}
+	}
+
+	private static void readPayload(InputStream in, TaskMerger merger, boolean operations) throws IOException {
+		int encoding = readByte(in);
+		if (encoding == RAW) {
+			read(in, merger, operations);
+			return;
+		}
+		if (encoding == SNAPSHOT && !operations) {
+			// The changes since the snapshot come after it
+			merger.read(new WireCodec.Reader(in));
+			merger.read(new WireCodec.Reader(in));
+			return;
+		}
+		if (encoding != DEFLATE) {
+			throw new IOException("Unknown encoding " + encoding);
+		}
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setDictionary(DICTIONARY);
+			InflaterInputStream iis = new InflaterInputStream(in, inflater, 4096);
+			read(iis, merger, operations);
+			// The list is decoded before the end of the deflate stream is
+			// read, nothing of the payload is left behind
+			if (iis.read() != -1) {
+				throw new IOException("Unexpected data after the task list");
+			}
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private static void read(InputStream in, TaskMerger merger, boolean operations) throws IOException {
+		if (operations) {
+			WireCodec.readOperations(in, merger);
+		} else {
+			merger.read(new WireCodec.Reader(in));
+		}
+	}
+
+	/**
+	 * Passes the bytes written on but not the flushes.
+	 */
+	private static class UnflushedOutputStream extends FilterOutputStream {
+		UnflushedOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void flush() {
+		}
+	}
+
+	private static int readByte(InputStream in) throws IOException {
+		int b = in.read();
+		if (b < 0) {
+			throw new EOFException();
+		}
+		return b;
+	}
+
+	private static byte[] utf8(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+}
@@ -0,0 +1,1159 @@
+/*
+ * Copyright (C) 2013-14 Nicolas Miller, Florian Paindorge
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package fr.syncarnet.sync;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import android.util.Log;
+
+import fr.syncarnet.tasks.*;
+
+/**
+ * Syncs the group owner of a Wi-Fi Direct group with the other members,
+ * several of them at once.
+ *
+ * One thread serves all the members with non-blocking sockets, from a
+ * listening socket opened once and kept until the server is stopped. The
+ * conversation is the one of SyncProtocol, each message being sent as one
+ * or more frames: the length of the frame as 4 bytes, with the high bit set
+ * when the message goes on in the next frame, then its bytes. The members
+ * send them with MessageOutputStream and read them with MessageInputStream.
+ * Each member is taken through the steps of SyncProtocol.negotiate as its
+ * messages arrive.
+ * Its task list is decoded and merged while it is read, by a thread of its
+ * own, so that only a few chunks of it wait in memory. The lists of the
+ * members are merged into one, which is merged with the local list as it is
+ * at each commit, so the changes made locally in the meantime are kept too.
+ *
+ * When the size of the group is known, the members sync in rounds: each one
+ * sends what it has, then waits until all the members did, or until
+ * ROUND_TIMEOUT. The merged list is then committed once and each member gets
+ * what it misses of it, so the whole group converges in one round. A member
+ * which already has the tasks of the group owner waits before the hello, it
+ * then syncs with the merged list.
+ */
+public class SyncServer implements Runnable {
+	private static final String TAG = "SynCarnet";
+	/** Port the group owner listens to */
+	public static final int PORT = 8988;
+	/**
+	 * Largest message accepted from a member, its tasks excepted since they
+	 * are decoded as they come
+	 */
+	public static final int MAX_MESSAGE = 16 << 20;
+	// Set in the length of a frame followed by more of the same message
+	private static final int MORE = 0x80000000;
+	// Longest frame sent by a member
+	private static final int FRAME = 64 << 10;
+	// Read at once from a member sending its tasks, and how much of them
+	// may wait to be decoded before the server stops reading
+	private static final int CHUNK = 16 << 10;
+	private static final int MAX_WAITING = 256 << 10;
+
+	// Steps of the conversation with a member
+	private static final int HELLO = 0;
+	private static final int LOG = 1;
+	private static final int NODES = 2;
+	private static final int LEAVES = 3;
+	private static final int PAYLOAD = 4;
+	private static final int DONE = 5;
+	// Waiting for the end of the round
+	private static final int WAIT_HELLO = 6;
+	private static final int WAIT_PAYLOAD = 7;
+
+	/** How long a round waits for the members which did not sync yet */
+	public static final long ROUND_TIMEOUT = 20000;
+
+	/**
+	 * Where the tasks come from and go to. Called from the thread of the
+	 * server, the lists going each way are not shared with it.
+	 */
+	public interface TaskStore {
+		/**
+		 * Returns a copy of the local task list, taken on the thread which
+		 * changes the list. The server keeps it.
+		 */
+		public TaskList getTasks() throws IOException;
+		/** Returns the last snapshot of the local list, or null */
+		public Snapshot getSnapshot();
+		/**
+		 * Takes the local list merged with what a member sent, or with the
+		 * part which came when the transfer was interrupted. It is a copy
+		 * of the list of the server, to be installed on the thread which
+		 * changes the local list.
+		 */
+		public void onMerged(TaskList merged, boolean complete);
+		/** Told when a member already has the same tasks */
+		public void onInSync();
+		/** Told when the sync with a member failed */
+		public void onFailed(IOException e);
+	}
+
+	private final TaskStore store;
+	private final int port;
+	private final Selector selector;
+	private final ServerSocketChannel server;
+	private final ArrayList<Peer> peers = new ArrayList<Peer>();
+	private Thread thread;
+	private volatile boolean running = false;
+	// The list merged with what the members connected sent, or the local
+	// list the members sync with, null when there are none. The store only
+	// gets copies of it.
+	private TaskList latest;
+	// Whether latest holds tasks of members the store did not get yet
+	private boolean uncommitted = false;
+	// Members whose decoding thread has something for the server thread
+	private final LinkedList<Peer> decoded = new LinkedList<Peer>();
+	// Members in the group, not counting its owner
+	private volatile int groupSize = 0;
+	// Members of the current round, and when it ends at the latest
+	private final ArrayList<Peer> waiting = new ArrayList<Peer>();
+	private long roundEnd = 0;
+
+	/**
+	 * Opens the listening socket.
+	 * @param port  Set it to 0 to use any free port
+	 */
+	public SyncServer(TaskStore store, int port) throws IOException {
+		this.store = store;
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		server.socket().setReuseAddress(true);
+		server.socket().bind(new InetSocketAddress(port));
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+		this.port = server.socket().getLocalPort();
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Sets the number of members of the group, not counting its owner. With
+	 * more than one member, they sync in rounds.
+	 */
+	public void setGroupSize(int members) {
+		groupSize = members;
+		selector.wakeup();
+	}
+
+	private boolean inRounds() {
+		return groupSize > 1;
+	}
+
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		thread = new Thread(this, "SyncServer");
+		thread.start();
+	}
+
+	/**
+	 * Closes the listening socket and the connections, the server cannot be
+	 * started again.
+	 */
+	public synchronized void stop() {
+		running = false;
+		selector.wakeup();
+	}
+
+	public void run() {
+		Log.d(TAG, "Sync server listening on port " + port);
+		try {
+			while (running) {
+				if (roundEnd > 0) {
+					selector.select(Math.max(1, roundEnd - System.currentTimeMillis()));
+				} else {
+					selector.select();
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					Peer peer = (Peer) key.attachment();
+					try {
+						if (key.isReadable()) {
+							peer.read();
+						}
+						if (key.isValid() && key.isWritable()) {
+							peer.write();
+						}
+					} catch (IOException e) {
+						peer.failed(e);
+					}
+				}
+				for (Peer peer : takeDecoded()) {
+					try {
+						peer.decoded();
+					} catch (IOException e) {
+						peer.failed(e);
+					}
+				}
+				if (roundEnd > 0 && (waiting.size() >= groupSize || System.currentTimeMillis() >= roundEnd)) {
+					endRound();
+				}
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Sync server stopped", e);
+		} finally {
+			for (Peer peer : new ArrayList<Peer>(peers)) {
+				peer.close();
+			}
+			close(server);
+			close(selector);
+			running = false;
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = server.accept();
+		if (channel == null) {
+			return;
+		}
+		Log.d(TAG, "Member connected: " + channel.socket().getRemoteSocketAddress());
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		Peer peer = new Peer(channel);
+		peer.key = channel.register(selector, SelectionKey.OP_READ, peer);
+		peers.add(peer);
+	}
+
+	/**
+	 * Returns the list a new member is synced with.
+	 */
+	private TaskList base() throws IOException {
+		if (latest == null) {
+			latest = store.getTasks();
+		}
+		return latest;
+	}
+
+	/**
+	 * Takes the list of a member merged with the one it synced with, its
+	 * tasks are given to the store by the next commit.
+	 */
+	private void take(TaskList merged, TaskList base) {
+		latest = latest == null || latest == base ? merged : merge(latest, merged);
+		uncommitted = true;
+	}
+
+	/**
+	 * Merges what the members sent with the local list as it is now, and
+	 * gives the result to the store.
+	 */
+	private void commit(boolean complete) throws IOException {
+		latest = merge(store.getTasks(), latest);
+		uncommitted = false;
+		install(latest, complete);
+	}
+
+	/**
+	 * Merges a list with another, as a sync sending the whole other list
+	 * would.
+	 */
+	private static TaskList merge(TaskList tl, TaskList other) {
+		TaskMerger merger = new TaskMerger(tl);
+		merger.addDeleted(other.getDeletedTasks());
+		for (Task t : other) {
+			merger.add(t);
+		}
+		merger.addSeen(other.getLog().getSeen(), other.getLog().getClock());
+		return merger.finish();
+	}
+
+	/**
+	 * Gives the store a copy of the merged list, the members keep being
+	 * synced with the list itself.
+	 */
+	private void install(TaskList merged, boolean complete) {
+		store.onMerged(new TaskList(merged), complete);
+	}
+
+	/**
+	 * Has the server thread look at a member again, called by the thread
+	 * decoding its tasks.
+	 */
+	private void decoded(Peer peer) {
+		synchronized (decoded) {
+			decoded.add(peer);
+		}
+		selector.wakeup();
+	}
+
+	private ArrayList<Peer> takeDecoded() {
+		synchronized (decoded) {
+			ArrayList<Peer> peers = new ArrayList<Peer>(decoded);
+			decoded.clear();
+			return peers;
+		}
+	}
+
+	/**
+	 * Commits what the members of the round sent, then gives each of them
+	 * what it misses.
+	 */
+	private void endRound() {
+		roundEnd = 0;
+		Log.d(TAG, "End of a round of " + waiting.size() + " members");
+		ArrayList<Peer> round = new ArrayList<Peer>(waiting);
+		waiting.clear();
+		TaskList merged;
+		try {
+			if (uncommitted) {
+				commit(true);
+			}
+			merged = base();
+		} catch (IOException e) {
+			for (Peer peer : round) {
+				peer.failed(e);
+			}
+			return;
+		}
+		for (Peer peer : round) {
+			try {
+				peer.resume(merged);
+			} catch (IOException e) {
+				peer.failed(e);
+			}
+		}
+	}
+
+	/**
+	 * A connected member and where its conversation stands.
+	 */
+	private class Peer {
+		private final SocketChannel channel;
+		private SelectionKey key;
+		private final ByteBuffer header = ByteBuffer.allocate(4);
+		private ByteBuffer message;
+		private final LinkedList<Output> output = new LinkedList<Output>();
+		private int step = HELLO;
+		// The tasks of the member being decoded, what is left to read of
+		// them, and whether the socket is read meanwhile
+		private Decoder decoder;
+		private ByteBuffer chunk;
+		private int payload = 0;
+		private boolean reading = true;
+		// Whether the message read goes on in the next frame, and its
+		// previous frames
+		private boolean more = false;
+		private ByteArrayOutputStream frames;
+
+		// What the conversation found so far
+		private TaskList base;
+		private SyncProtocol.Hello hello;
+		private VersionVector peerSeen;
+		private long peerClock;
+		private int[] nodes;
+		private long[] leaves;
+		private SyncProtocol.Plan plan;
+		// The hashes of all the leaves of the member, known after
+		// reconciling
+		private long[] memberLeaves;
+		private boolean joined = false;
+
+		Peer(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		/**
+		 * Reads what is available, each complete message takes the
+		 * conversation one step further. The tasks of the member go to its
+		 * decoder as they are read.
+		 */
+		void read() throws IOException {
+			while (reading) {
+				if (payload > 0) {
+					if (!readPayload()) {
+						return;
+					}
+					continue;
+				}
+				if (message == null) {
+					if (channel.read(header) < 0) {
+						eof();
+						return;
+					}
+					if (header.hasRemaining()) {
+						return;
+					}
+					header.flip();
+					int length = header.getInt();
+					header.clear();
+					more = (length & MORE) != 0;
+					length &= ~MORE;
+					if (length > MAX_MESSAGE) {
+						throw new IOException("Invalid message length " + length);
+					}
+					if (step == PAYLOAD) {
+						decode(length);
+						continue;
+					}
+					message = ByteBuffer.allocate(length);
+				}
+				if (channel.read(message) < 0) {
+					eof();
+					return;
+				}
+				if (message.hasRemaining()) {
+					return;
+				}
+				byte[] m = message.array();
+				message = null;
+				if (more || frames != null) {
+					if (frames == null) {
+						frames = new ByteArrayOutputStream();
+					}
+					if (frames.size() + m.length > MAX_MESSAGE) {
+						throw new IOException("Message too long");
+					}
+					frames.write(m, 0, m.length);
+					if (more) {
+						continue;
+					}
+					m = frames.toByteArray();
+					frames = null;
+				}
+				receive(m);
+				if (!key.isValid()) {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Starts decoding the tasks of the member, or goes on with the
+		 * next frame of them, of the given length.
+		 */
+		private void decode(int length) {
+			if (decoder == null) {
+				decoder = new Decoder(this, base, plan);
+				decoder.start();
+			}
+			payload = length;
+			if (payload == 0) {
+				frameRead();
+			}
+		}
+
+		/**
+		 * Stops reading once the last frame of the tasks is read, the
+		 * decoder then reads to their end.
+		 */
+		private void frameRead() {
+			if (more) {
+				return;
+			}
+			decoder.input.end();
+			chunk = null;
+			reading(false);
+		}
+
+		/**
+		 * Hands the decoder a chunk of the tasks of the member, returns
+		 * false if none was available. Reading stops while the decoder is
+		 * behind, and once all the tasks are read.
+		 */
+		private boolean readPayload() throws IOException {
+			if (chunk == null) {
+				chunk = ByteBuffer.allocate(CHUNK);
+			}
+			chunk.clear();
+			chunk.limit(Math.min(payload, CHUNK));
+			int n = channel.read(chunk);
+			if (n < 0) {
+				eof();
+				return false;
+			}
+			if (n == 0) {
+				return false;
+			}
+			payload -= n;
+			decoder.input.add(Arrays.copyOf(chunk.array(), n));
+			if (payload == 0) {
+				frameRead();
+			}
+			if (reading && decoder.input.isFull()) {
+				reading(false);
+			}
+			return true;
+		}
+
+		/**
+		 * Goes on once the decoder made room for more tasks, or once it
+		 * decoded all of them.
+		 */
+		void decoded() throws IOException {
+			if (decoder == null || !key.isValid()) {
+				return;
+			}
+			if (!decoder.isDone()) {
+				if ((payload > 0 || more) && !decoder.input.isFull()) {
+					reading(true);
+				}
+				return;
+			}
+			Decoder d = decoder;
+			decoder = null;
+			reading(true);
+			merged(d.merged, d.failure);
+		}
+
+		private void reading(boolean reading) {
+			this.reading = reading;
+			interest();
+		}
+
+		private void interest() {
+			key.interestOps((reading ? SelectionKey.OP_READ : 0) | (output.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+		}
+
+		private void eof() throws IOException {
+			if (step != DONE) {
+				throw new EOFException("Member left during the sync");
+			}
+			close();
+		}
+
+		/**
+		 * Writes what the socket takes of the pending messages.
+		 */
+		void write() throws IOException {
+			while (!output.isEmpty()) {
+				if (!output.getFirst().writeTo(channel)) {
+					return;
+				}
+				output.removeFirst();
+			}
+			interest();
+		}
+
+		private void send(byte[] m) {
+			ByteBuffer b = ByteBuffer.allocate(4 + m.length);
+			b.putInt(m.length);
+			b.put(m);
+			b.flip();
+			output.add(new BufferOutput(b));
+			interest();
+		}
+
+		/**
+		 * Sends a snapshot and the changes since as one message, the
+		 * snapshot going from its file to the socket. Returns false if
+		 * they do not fit in a message.
+		 */
+		private boolean send(Snapshot snapshot, TaskList delta) throws IOException {
+			byte[] d = WireCodec.encode(delta);
+			long length = 1 + snapshot.length() + d.length;
+			if (length > MAX_MESSAGE) {
+				return false;
+			}
+			ByteBuffer b = ByteBuffer.allocate(5);
+			b.putInt((int) length);
+			b.put((byte) SyncProtocol.SNAPSHOT);
+			b.flip();
+			output.add(new BufferOutput(b));
+			output.add(new SnapshotOutput(snapshot));
+			output.add(new BufferOutput(ByteBuffer.wrap(d)));
+			interest();
+			return true;
+		}
+
+		private void receive(byte[] m) throws IOException {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(m));
+			ByteArrayOutputStream b = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(b);
+			switch (step) {
+				case HELLO:
+					hello = SyncProtocol.readHello(in);
+					if (inRounds() && hello.digest.equals(base().digest())) {
+						// Nothing to give, it waits for what the others give
+						join(WAIT_HELLO);
+					} else {
+						answerHello(base());
+					}
+					break;
+				case LOG:
+					long peer = in.readLong();
+					peerClock = in.readLong();
+					peerSeen = SyncProtocol.readVersionVector(in);
+					if (SyncProtocol.met(base.getLog(), peer, peerSeen)) {
+						plan(null);
+					} else {
+						sendNodes();
+					}
+					break;
+				case NODES:
+					long[] mine = base.merkleTree().getNodes();
+					nodes = SyncProtocol.differingNodes(mine, hashes(m, mine.length));
+					if (nodes.length == 0) {
+						memberLeaves = allLeaves(new long[0]);
+						plan(new boolean[MerkleTree.LEAVES]);
+					} else {
+						leaves = SyncProtocol.leavesOf(base.merkleTree(), nodes);
+						send(SyncProtocol.toBytes(leaves));
+						step = LEAVES;
+					}
+					break;
+				case LEAVES:
+					long[] theirs = hashes(m, leaves.length);
+					memberLeaves = allLeaves(theirs);
+					plan(SyncProtocol.differingLeaves(nodes, leaves, theirs));
+					break;
+				default:
+					throw new IOException("Unexpected message after the sync");
+			}
+		}
+
+		private void answerHello(TaskList tl) throws IOException {
+			base = tl;
+			ByteArrayOutputStream b = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(b);
+			SyncProtocol.writeHello(out, base.digest());
+			send(b.toByteArray());
+			if (hello.digest.equals(base.digest())) {
+				step = DONE;
+				store.onInSync();
+			} else if ((hello.capabilities & SyncProtocol.CAP_OPLOG) == 0) {
+				sendNodes();
+			} else {
+				b.reset();
+				SyncProtocol.writeLogState(out, base.getLog());
+				send(b.toByteArray());
+				step = LOG;
+			}
+		}
+
+		private void sendNodes() {
+			send(SyncProtocol.toBytes(base.merkleTree().getNodes()));
+			step = NODES;
+		}
+
+		private long[] hashes(byte[] m, int count) throws IOException {
+			if (m.length != count * 8) {
+				throw new IOException("Expected " + count + " hashes, got " + m.length + " bytes");
+			}
+			return SyncProtocol.toHashes(m);
+		}
+
+		/**
+		 * Returns the hashes of all the leaves of the member, given those
+		 * under the nodes which differ. The others are the same as ours.
+		 */
+		private long[] allLeaves(long[] theirs) {
+			MerkleTree tree = base.merkleTree();
+			long[] all = new long[MerkleTree.LEAVES];
+			for (int i = 0; i < MerkleTree.FANOUT; i++) {
+				System.arraycopy(tree.getLeaves(i), 0, all, i * MerkleTree.FANOUT, MerkleTree.FANOUT);
+			}
+			for (int i = 0; i < theirs.length; i++) {
+				all[nodes[i / MerkleTree.FANOUT] * MerkleTree.FANOUT + i % MerkleTree.FANOUT] = theirs[i];
+			}
+			return all;
+		}
+
+		/**
+		 * Sends what the member does not have once the plan is known, or
+		 * once the round ends.
+		 */
+		private void plan(boolean[] differing) throws IOException {
+			plan = new SyncProtocol.Plan(hello, false, differing, peerSeen, peerClock);
+			if (!inRounds() || joined) {
+				sendPayload(plan, base);
+			}
+			step = PAYLOAD;
+		}
+
+		private void sendPayload(SyncProtocol.Plan p, TaskList tl) throws IOException {
+			// A new member gets the whole list, straight from the snapshot
+			Snapshot snapshot = store.getSnapshot();
+			TaskList delta = SyncProtocol.snapshotDelta(snapshot, tl, p, SyncProtocol.WIFI_SPEED);
+			if (delta != null && snapshot.acquire()) {
+				if (send(snapshot, delta)) {
+					Log.d(TAG, "Sending the snapshot of " + snapshot.length() + " bytes and " + delta.size() + " changed tasks");
+					return;
+				}
+				snapshot.release();
+			}
+			ByteArrayOutputStream b = new ByteArrayOutputStream();
+			SyncProtocol.send(b, p.select(tl), p, SyncProtocol.WIFI_SPEED);
+			send(b.toByteArray());
+		}
+
+		/**
+		 * Waits for the end of the round.
+		 */
+		private void join(int wait) {
+			step = wait;
+			joined = true;
+			waiting.add(this);
+			if (roundEnd == 0) {
+				roundEnd = System.currentTimeMillis() + ROUND_TIMEOUT;
+			}
+		}
+
+		/**
+		 * Goes on once the round ended, with the list merged with all the
+		 * members of the round.
+		 */
+		void resume(TaskList merged) throws IOException {
+			if (step == WAIT_HELLO) {
+				answerHello(merged);
+				return;
+			}
+			if (plan.sendsOperations()) {
+				sendPayload(plan, merged);
+			} else {
+				// The leaves which differ from the merged list now
+				boolean[] differing = new boolean[MerkleTree.LEAVES];
+				MerkleTree tree = merged.merkleTree();
+				for (int i = 0; i < MerkleTree.FANOUT; i++) {
+					long[] l = tree.getLeaves(i);
+					for (int j = 0; j < MerkleTree.FANOUT; j++) {
+						differing[i * MerkleTree.FANOUT + j] = l[j] != memberLeaves[i * MerkleTree.FANOUT + j];
+					}
+				}
+				sendPayload(new SyncProtocol.Plan(hello, false, differing, peerSeen, peerClock), merged);
+			}
+			step = DONE;
+		}
+
+		/**
+		 * Takes the list of the member once decoded, it is merged with the
+		 * local list and what the other members sent.
+		 */
+		private void merged(TaskList merged, IOException failure) throws IOException {
+			take(merged, base);
+			if (failure != null) {
+				// What came is kept, the most urgent tasks come first
+				commit(false);
+				throw failure;
+			}
+			Log.d(TAG, "Merged the tasks of " + channel.socket().getRemoteSocketAddress());
+			if (inRounds() && !joined) {
+				// Committed with the others at the end of the round
+				join(WAIT_PAYLOAD);
+				return;
+			}
+			step = DONE;
+			commit(true);
+		}
+
+		void failed(IOException e) {
+			Log.e(TAG, "Sync with " + channel.socket().getRemoteSocketAddress() + " failed", e);
+			close();
+			store.onFailed(e);
+		}
+
+		void close() {
+			key.cancel();
+			SyncServer.close(channel);
+			if (decoder != null) {
+				decoder.input.fail(new EOFException("Member left during the sync"));
+				decoder = null;
+			}
+			peers.remove(this);
+			waiting.remove(this);
+			for (Output o : output) {
+				o.discard();
+			}
+			output.clear();
+			if (peers.isEmpty()) {
+				if (roundEnd > 0) {
+					// Keeps what the members who left gave
+					endRound();
+				}
+				latest = null;
+				uncommitted = false;
+			}
+		}
+	}
+
+	/**
+	 * Decodes the tasks of a member as they are read and merges them with
+	 * the list it synced with. What is decoded when the tasks cannot be
+	 * read in full is kept.
+	 */
+	private class Decoder extends Thread {
+		final PayloadInput input;
+		private final TaskMerger merger;
+		private final SyncProtocol.Plan plan;
+		private final Peer peer;
+		private boolean done = false;
+		// Set once done
+		TaskList merged;
+		IOException failure;
+
+		Decoder(Peer peer, TaskList base, SyncProtocol.Plan plan) {
+			super("SyncServer decoder");
+			this.peer = peer;
+			this.plan = plan;
+			merger = new TaskMerger(base);
+			input = new PayloadInput(this);
+		}
+
+		public void run() {
+			TaskList tl;
+			IOException e = null;
+			try {
+				InputStream in = new BufferedInputStream(input);
+				SyncProtocol.receive(in, merger, plan);
+				// What the encoding left of the message
+				byte[] rest = new byte[CHUNK];
+				while (in.read(rest) != -1) {
+				}
+				tl = merger.finish();
+			} catch (IOException ex) {
+				e = ex;
+				tl = merger.commit();
+			} catch (RuntimeException ex) {
+				e = new IOException("Invalid tasks: " + ex);
+				tl = merger.commit();
+			}
+			synchronized (this) {
+				merged = tl;
+				failure = e;
+				done = true;
+			}
+			decoded(peer);
+		}
+
+		synchronized boolean isDone() {
+			return done;
+		}
+
+		/**
+		 * Told by the input once it has room for more.
+		 */
+		void room() {
+			decoded(peer);
+		}
+	}
+
+	/**
+	 * The chunks of a message read by the server thread, waiting for the
+	 * decoder to read them.
+	 */
+	private static class PayloadInput extends InputStream {
+		private final Decoder decoder;
+		private final LinkedList<byte[]> chunks = new LinkedList<byte[]>();
+		private byte[] current;
+		private int position = 0;
+		private int waiting = 0;
+		private boolean ended = false;
+		private IOException failure;
+
+		PayloadInput(Decoder decoder) {
+			this.decoder = decoder;
+		}
+
+		synchronized void add(byte[] chunk) {
+			chunks.add(chunk);
+			waiting += chunk.length;
+			notifyAll();
+		}
+
+		synchronized boolean isFull() {
+			return waiting >= MAX_WAITING;
+		}
+
+		/** Told once the whole message was read */
+		synchronized void end() {
+			ended = true;
+			notifyAll();
+		}
+
+		/** Told when the member left, the decoder gets the exception */
+		synchronized void fail(IOException e) {
+			failure = e;
+			notifyAll();
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			boolean room = false;
+			int n;
+			synchronized (this) {
+				while (current == null || position == current.length) {
+					if (failure != null) {
+						throw failure;
+					}
+					if (!chunks.isEmpty()) {
+						boolean full = isFull();
+						current = chunks.removeFirst();
+						position = 0;
+						waiting -= current.length;
+						room = full && !isFull();
+					} else if (ended) {
+						return -1;
+					} else {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							throw new InterruptedIOException("Interrupted while decoding");
+						}
+					}
+				}
+				n = Math.min(len, current.length - position);
+				System.arraycopy(current, position, b, off, n);
+				position += n;
+			}
+			if (room) {
+				decoder.room();
+			}
+			return n;
+		}
+	}
+
+	/**
+	 * Something waiting to be written to a member.
+	 */
+	private interface Output {
+		/** Writes what the socket takes, returns true once all is written */
+		boolean writeTo(SocketChannel channel) throws IOException;
+		/** Told when the member left before it was written */
+		void discard();
+	}
+
+	private static class BufferOutput implements Output {
+		private final ByteBuffer buffer;
+
+		BufferOutput(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		public boolean writeTo(SocketChannel channel) throws IOException {
+			channel.write(buffer);
+			return !buffer.hasRemaining();
+		}
+
+		public void discard() {
+		}
+	}
+
+	/**
+	 * A snapshot acquired for the member, released once it is written.
+	 */
+	private static class SnapshotOutput implements Output {
+		private final Snapshot snapshot;
+		private long position = 0;
+
+		SnapshotOutput(Snapshot snapshot) {
+			this.snapshot = snapshot;
+		}
+
+		public boolean writeTo(SocketChannel channel) throws IOException {
+			while (position < snapshot.length()) {
+				long n = snapshot.transferTo(position, snapshot.length() - position, channel);
+				if (n == 0) {
+					return false;
+				}
+				position += n;
+			}
+			snapshot.release();
+			return true;
+		}
+
+		public void discard() {
+			try {
+				snapshot.release();
+			} catch (IOException e) {
+				Log.e(TAG, "Could not close the snapshot", e);
+			}
+		}
+	}
+
+	private static void close(java.io.Closeable c) {
+		try {
+			c.close();
+		} catch (IOException e) {
+			Log.e(TAG, "close() failed", e);
+		}
+	}
+
+	/**
+	 * What a member writes to the server: each flush sends what was
+	 * written since the previous one as a message. A long message goes
+	 * out in frames as it is written, so only one frame is held here.
+	 */
+	public static class MessageOutputStream extends OutputStream {
+		private final DataOutputStream out;
+		private final byte[] frame = new byte[FRAME];
+		private int count = 0;
+		// Whether frames of the current message were sent already
+		private boolean started = false;
+
+		public MessageOutputStream(OutputStream out) {
+			this.out = new DataOutputStream(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (count == frame.length) {
+				send(true);
+			}
+			frame[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (count == frame.length) {
+					send(true);
+				}
+				int n = Math.min(len, frame.length - count);
+				System.arraycopy(b, off, frame, count, n);
+				count += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (count == 0 && !started) {
+				return;
+			}
+			send(false);
+			out.flush();
+		}
+
+		private void send(boolean more) throws IOException {
+			out.writeInt(more ? count | MORE : count);
+			out.write(frame, 0, count);
+			count = 0;
+			started = more;
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+			out.close();
+		}
+	}
+
+	/**
+	 * What a member reads from the server: the messages one after the
+	 * other, without their lengths.
+	 */
+	public static class MessageInputStream extends InputStream {
+		private final DataInputStream in;
+		private int remaining = 0;
+
+		/**
+		 * @param in  Should be buffered
+		 */
+		public MessageInputStream(InputStream in) {
+			this.in = new DataInputStream(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!next()) {
+				return -1;
+			}
+			remaining--;
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException("Message cut short");
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!next()) {
+				return -1;
+			}
+			int n = in.read(b, off, Math.min(len, remaining));
+			if (n < 0) {
+				throw new EOFException("Message cut short");
+			}
+			remaining -= n;
+			return n;
+		}
+
+		/**
+		 * Moves to the next message when the current one is read, returns
+		 * false at the end of the stream.
+		 */
+		private boolean next() throws IOException {
+			while (remaining == 0) {
+				int b = in.read();
+				if (b < 0) {
+					return false;
+				}
+				remaining = ((b << 24) | (in.readUnsignedByte() << 16) | in.readUnsignedShort()) & ~MORE;
+				if (remaining > MAX_MESSAGE) {
+					throw new IOException("Invalid message length " + remaining);
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
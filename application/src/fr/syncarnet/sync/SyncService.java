@@ -320,6 +320,9 @@ public class SyncService {
 
 	public void setConnected(boolean isConnected) {
 		this.isConnected = isConnected;
+		if (!isConnected) {
+			TaskListTransferService.stopServer();
+		}
 		if (isConnected){
 			if (synCarnet.peerListDialog != null) {
 				synCarnet.peerListDialog.getPeerSelection().setConnected();
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2014 Nicolas Miller, Florian Paindorge
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package fr.syncarnet.sync;
+
+import java.io.IOException;
+
+/**
+ * How sessions with peers are opened: Bluetooth, TCP over Wi-Fi Direct, or
+ * in memory when the protocol is driven from a plain JVM.
+ */
+public interface SyncTransport {
+	/**
+	 * Opens a session with the peer the transport was made for.
+	 */
+	public SyncSession connect() throws IOException;
+
+	/**
+	 * Waits for a peer to open a session.
+	 */
+	public SyncSession accept() throws IOException;
+
+	/**
+	 * Stops listening and gives up connecting, a thread blocked in connect
+	 * or accept gets an IOException. Open sessions are left alone.
+	 */
+	public void close() throws IOException;
+}
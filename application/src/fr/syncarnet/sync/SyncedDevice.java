@@ -18,11 +18,9 @@
 
 package fr.syncarnet.sync;
 
-import fr.syncarnet.tasks.*;
 import fr.syncarnet.*;
 import java.io.Serializable;
 import java.util.Date; // rightNow = new Date().getTime(); (In Unix Time)
-import java.util.UUID;
 import java.text.DateFormat;
 
 public class SyncedDevice implements Serializable {
@@ -48,27 +46,6 @@ public class SyncedDevice implements Serializable {
 		return this.id;
 	}
 
-	public TaskList buildDifferentialTaskList(TaskList tl) {
-		TaskList diffTaskList = new TaskList();
-		for (Task t : tl) {
-			if (t.getEntry() >= lastSynchronized || t.getModified() >= lastSynchronized) {
-				diffTaskList.add(t);
-			}
-		}
-
-		// Retrieve deleted tasks that needs to be synchronized
-		DeletedTasks deletedTasks = tl.getDeletedTasks();
-		DeletedTasks diffDeletedTasks = new DeletedTasks();
-		for (UUID uuid : deletedTasks) {
-			if (deletedTasks.getTimestamp(uuid) < lastSynchronized) {
-				diffDeletedTasks.add(uuid, deletedTasks.getTimestamp(uuid));
-			}
-		}
-		diffTaskList.setDeletedTasks(diffDeletedTasks);
-
-		return diffTaskList;
-	}
-
 	public String toString() {
 		// The toString is used in the ArrayAdapter
 		String lastSyncDate = DateFormat.getDateInstance().format(new Date(lastSynchronized));
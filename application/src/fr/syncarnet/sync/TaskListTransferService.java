@@ -21,15 +21,9 @@ package fr.syncarnet.sync;
 import android.app.IntentService;
 import android.app.ProgressDialog;
 import android.content.Intent;
-import android.os.AsyncTask;
 import android.util.Log;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.net.ServerSocket;
 
 import fr.syncarnet.*;
 import fr.syncarnet.tasks.*;
@@ -37,11 +31,12 @@ import fr.syncarnet.sync.PeerList.ServiceStatic;
 
 public class TaskListTransferService extends IntentService {
 	private String TAG = "SynCarnet";
-	private static final int SOCKET_TIMEOUT = 5000;
 	private Intent intent;
 	private SynCarnet synCarnet;
 	private String host;
 	private boolean isGroupOwner;
+	// Kept between the intents, the members sync with it while the group lasts
+	private static SyncServer server;
 
 	public TaskListTransferService() {
 		super("TaskListTransferService");
@@ -59,37 +54,24 @@ public class TaskListTransferService extends IntentService {
 		this.host = ServiceStatic.getHost();
 		this.isGroupOwner = ServiceStatic.getIsGroupOwner();
 
-		Socket socket = new Socket();
-		int port = 8988;
-		ServerSocket serverSocket = null;
-		Socket client = null;
-		TaskListAsync taskListAsync = null;
+		SyncSession session = null;
+		TaskMerger merger = null;
 
 		if(isGroupOwner) {
-			new TaskListAsync(synCarnet).execute();
+			startServer(synCarnet);
 		} else {
 			try {
-				TaskList originalTL = new TaskList();
-				String originalTLString;
-				if (synCarnet.knowPeer(ServiceStatic.getHostId())) {
-					originalTLString = synCarnet.getPeer(ServiceStatic.getHostId()).buildDifferentialTaskList(synCarnet.getTasks()).jsonify();
-					Log.d(TAG, "Built differential TaskList");
-				} else {
-					originalTLString = synCarnet.getTasks().jsonify();
-					Log.d(TAG, "Device not already known");
+				session = new TcpTransport(host, SyncServer.PORT).connect();
+				// The UI keeps changing its list during the sync
+				TaskList originalTL = synCarnet.copyTasks();
+				merger = new TaskMerger(originalTL);
+				TaskList mergedTL = SyncExchange.run(session, originalTL, merger, SyncProtocol.WIFI_SPEED, synCarnet.getSnapshot());
+				if (mergedTL == null) {
+					Log.d(TAG, "Already in sync");
+					synCarnet.showToast(synCarnet.getString(R.string.alreadySynced));
+					synCarnet.savePeer(ServiceStatic.getHostName(), ServiceStatic.getHostId());
+					return;
 				}
-				socket.bind(null);
-				socket.connect((new InetSocketAddress(host, port)), SOCKET_TIMEOUT);
-
-				ObjectOutputStream outputStream = new ObjectOutputStream(socket.getOutputStream());
-				outputStream.writeObject(originalTLString);
-
-				ObjectInputStream inputStream = new ObjectInputStream(socket.getInputStream());
-				String receivedTLString = (String) inputStream.readObject();
-				TaskList receivedTL = new TaskList();
-				receivedTL.unJsonify(receivedTLString);
-
-				TaskList mergedTL = TaskList.merge(synCarnet.getTasks(), receivedTL);
 
 				synCarnet.runOnUiThread(new SetTaskListRun(synCarnet, mergedTL));
 
@@ -98,19 +80,27 @@ public class TaskListTransferService extends IntentService {
 			} catch (IOException e) {
 				synCarnet.showToast(synCarnet.getString(R.string.IOException));
 				Log.e(TAG,"IOException : "+e.getStackTrace().toString());
-			} catch (ClassNotFoundException e) {
-				synCarnet.showToast(synCarnet.getString(R.string.ClassNotFoundException));
-				Log.e(TAG,"ClassNotFoundException : "+e.getStackTrace().toString());
+				commitPartial(synCarnet, merger);
 			} finally {
-				socketClose(socket);
-				socketClose(client);
+				sessionClose(session);
 			}
 		}
 
 	}
 
-	private void socketClose(Socket s) {
-		if(s != null && s.isConnected()) {
+	/**
+	 * Keeps what was merged before a transfer failed, the most urgent tasks
+	 * being sent first.
+	 */
+	static void commitPartial(SynCarnet synCarnet, TaskMerger merger) {
+		if (merger != null && merger.hasChanges()) {
+			synCarnet.runOnUiThread(new SetTaskListRun(synCarnet, merger.commit()));
+			synCarnet.showToast(synCarnet.getString(R.string.partialSync));
+		}
+	}
+
+	private void sessionClose(SyncSession s) {
+		if(s != null) {
 			try {
 				s.close();
 			} catch (IOException e) {
@@ -119,76 +109,63 @@ public class TaskListTransferService extends IntentService {
 		}
 	}
 
-	public static class TaskListAsync extends AsyncTask<Void, Void, String> {
-		private SynCarnet synCarnet;
-		private String TAG = "SynCarnet";
-
-		/**
-		 * @param context
-		 * @param statusText
-		 */
-		public TaskListAsync(SynCarnet synCarnet) {
-			this.synCarnet = synCarnet;
+	/**
+	 * Starts the server the members of the group sync with, unless it is
+	 * already running. It keeps listening until the group is left, the size
+	 * of the group being updated as members join.
+	 */
+	static synchronized void startServer(final SynCarnet synCarnet) {
+		if (server != null && server.isRunning()) {
+			server.setGroupSize(ServiceStatic.getGroupSize());
+			return;
 		}
-
-		@Override
-		protected String doInBackground(Void... params) {
-			try {
-				TaskList originalTL = new TaskList();
-				//if device is already known => get differential task list
-				//device.buildDifferentialTaskList(this.taskList)
-				String originalTLString;
-				if (synCarnet.knowPeer(ServiceStatic.getHostId())) {
-					originalTLString = synCarnet.getPeer(ServiceStatic.getHostId()).buildDifferentialTaskList(synCarnet.getTasks()).jsonify();
-					Log.d(TAG, "Built differential TaskList");
-				} else {
-					originalTLString = synCarnet.getTasks().jsonify();
-					Log.d(TAG, "Device not already known");
+		try {
+			server = new SyncServer(new SyncServer.TaskStore() {
+				public TaskList getTasks() throws IOException {
+					return synCarnet.copyTasks();
 				}
 
-				ServerSocket serverSocket = new ServerSocket(8988);
-
-				Socket client = serverSocket.accept();
-				ObjectInputStream inputStream = new ObjectInputStream(client.getInputStream());
-				String receivedTLString = (String) inputStream.readObject();
-				TaskList receivedTL = new TaskList();
-				receivedTL.unJsonify(receivedTLString);
-
-				TaskList mergedTL = TaskList.merge(synCarnet.getTasks(), receivedTL);
-
-				synCarnet.runOnUiThread(new SetTaskListRun(synCarnet, mergedTL));
-
-				ObjectOutputStream outputStream = new ObjectOutputStream(client.getOutputStream());
-				outputStream.writeObject(originalTLString);
+				public Snapshot getSnapshot() {
+					return synCarnet.getSnapshot();
+				}
 
-				serverSocket.close();
-				return "succes";
-			}
-			catch (IOException e) {
-				synCarnet.showToast(synCarnet.getString(R.string.IOException));
-				Log.e(TAG,"IOException : "+e.getStackTrace().toString());
-				return null;
-			}
-			catch (ClassNotFoundException e) {
-				synCarnet.showToast(synCarnet.getString(R.string.ClassNotFoundException));
-				Log.e(TAG,"ClassNotFoundException : "+e.getStackTrace().toString());
-				return null;
-			}
-		}
+				public void onMerged(TaskList merged, boolean complete) {
+					synCarnet.runOnUiThread(new SetTaskListRun(synCarnet, merged));
+					if (complete) {
+						synCarnet.showToast(synCarnet.getString(R.string.successSync));
+						synCarnet.savePeer(ServiceStatic.getHostName(), ServiceStatic.getHostId());
+					} else {
+						synCarnet.showToast(synCarnet.getString(R.string.partialSync));
+					}
+				}
 
-		@Override
-		protected void onPostExecute(String result) {
-			if (result != null) {
-				synCarnet.showToast(synCarnet.getString(R.string.successSync));
-				synCarnet.savePeer(ServiceStatic.getHostName(), ServiceStatic.getHostId());
-			}
-		}
+				public void onInSync() {
+					synCarnet.showToast(synCarnet.getString(R.string.alreadySynced));
+					synCarnet.savePeer(ServiceStatic.getHostName(), ServiceStatic.getHostId());
+				}
 
-		@Override
-		protected void onPreExecute() {
+				public void onFailed(IOException e) {
+					synCarnet.showToast(synCarnet.getString(R.string.IOException));
+				}
+			}, SyncServer.PORT);
+			server.setGroupSize(ServiceStatic.getGroupSize());
+			server.start();
 			synCarnet.showToast(synCarnet.getString(R.string.openingSocket));
+		} catch (IOException e) {
+			server = null;
+			synCarnet.showToast(synCarnet.getString(R.string.IOException));
+			Log.e("SynCarnet", "Could not open the sync server", e);
 		}
+	}
 
+	/**
+	 * Stops the server once the group is left.
+	 */
+	static synchronized void stopServer() {
+		if (server != null) {
+			server.stop();
+			server = null;
+		}
 	}
 }
 
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2014 Nicolas Miller, Florian Paindorge
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package fr.syncarnet.sync;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Sessions over TCP, as between the members of a Wi-Fi Direct group or on
+ * localhost. What is written is sent as one message per flush, the way
+ * SyncServer expects it, so a session opened here may talk with a
+ * SyncServer as well as with a session accepted here.
+ */
+public class TcpTransport implements SyncTransport {
+	private static final int SOCKET_TIMEOUT = 5000;
+
+	private final String host;
+	private final int port;
+	private ServerSocket serverSocket;
+	private Socket connecting;
+	private boolean closed = false;
+
+	/**
+	 * @param host  The peer to connect to, null if the transport only
+	 * accepts sessions
+	 * @param port  The port of the peer, or the one to listen on, 0 for
+	 * any free port
+	 */
+	public TcpTransport(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	public SyncSession connect() throws IOException {
+		Socket socket = new Socket();
+		synchronized (this) {
+			if (closed) {
+				throw new IOException("Transport closed");
+			}
+			connecting = socket;
+		}
+		try {
+			socket.bind(null);
+			socket.connect(new InetSocketAddress(host, port), SOCKET_TIMEOUT);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		} finally {
+			synchronized (this) {
+				connecting = null;
+			}
+		}
+		return new TcpSession(socket);
+	}
+
+	public SyncSession accept() throws IOException {
+		return new TcpSession(listen().accept());
+	}
+
+	/**
+	 * Returns the port sessions are accepted on, once listening.
+	 */
+	public int getLocalPort() throws IOException {
+		return listen().getLocalPort();
+	}
+
+	private synchronized ServerSocket listen() throws IOException {
+		if (closed) {
+			throw new IOException("Transport closed");
+		}
+		if (serverSocket == null) {
+			serverSocket = new ServerSocket();
+			serverSocket.setReuseAddress(true);
+			serverSocket.bind(new InetSocketAddress(port));
+		}
+		return serverSocket;
+	}
+
+	public synchronized void close() throws IOException {
+		closed = true;
+		if (connecting != null) {
+			connecting.close();
+		}
+		if (serverSocket != null) {
+			serverSocket.close();
+		}
+	}
+
+	/**
+	 * A connected socket.
+	 */
+	public static class TcpSession implements SyncSession {
+		private final Socket socket;
+		private final InputStream in;
+		private final OutputStream out;
+
+		public TcpSession(Socket socket) throws IOException {
+			this.socket = socket;
+			// One message per step of the protocol, see SyncServer
+			in = new SyncServer.MessageInputStream(new BufferedInputStream(socket.getInputStream()));
+			out = new SyncServer.MessageOutputStream(socket.getOutputStream());
+		}
+
+		public InputStream getInputStream() {
+			return in;
+		}
+
+		public OutputStream getOutputStream() {
+			return out;
+		}
+
+		public void close() throws IOException {
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2014 Nicolas Miller, Florian Paindorge
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package fr.syncarnet.sync;
+
+/**
+ * Gets notified each time a frame of a sync payload has been sent or received.
+ */
+public interface TransferListener {
+	/**
+	 * @param bytes
+	 * 	The total number of payload bytes transferred so far
+	 */
+	public void onProgress(long bytes);
+}
@@ -19,45 +19,434 @@ package fr.syncarnet.tasks;
 
 import android.util.Log;
 
-import java.util.UUID;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.AbstractSet;
+import java.util.ConcurrentModificationException;
 import java.util.Date; // rightNow = new Date().getTime(); (In Unix Time)
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.UUID;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
-public class DeletedTasks extends ArrayList<UUID> implements Serializable {
-	private HashMap<UUID, Long> timestamps = new HashMap<UUID, Long>();
+/**
+ * The UUIDs of the deleted tasks with their deletion timestamp, and the local
+ * time each one was added here. They are kept in an open addressing hash
+ * table of primitive longs: a tombstone costs four longs and looking one up
+ * is constant time.
+ */
+public class DeletedTasks extends AbstractSet<UUID> implements Serializable {
+	// Tombstones saved in an ArrayList are read by TaskListInputStream
+	private static final long serialVersionUID = 2L;
 	private static final String TAG = "SynCarnet";
+	private static final int MIN_CAPACITY = 16;
+
+	// Both halves of each UUID, its timestamp and when it was added here, a
+	// slot is free when its UUID is the nil UUID, which is stored apart.
+	private transient long[] msbs;
+	private transient long[] lsbs;
+	private transient long[] timestamps;
+	private transient long[] added;
+	private transient int size;
+	private transient boolean hasNil;
+	private transient long nilTimestamp;
+	private transient long nilAdded;
+	private transient int modCount;
+	// Sum of the hashes of the tombstones, see Digest, and the same by UUID prefix
+	private transient long hash;
+	private transient MerkleTree buckets;
+	// No tombstone is older, since returns this set at once while all of
+	// them are recent
+	private transient long oldest;
 
+	public DeletedTasks() {
+		init(MIN_CAPACITY);
+	}
+
+	/**
+	 * Copies the tombstones of another set.
+	 */
+	public DeletedTasks(DeletedTasks dt) {
+		msbs = dt.msbs.clone();
+		lsbs = dt.lsbs.clone();
+		timestamps = dt.timestamps.clone();
+		added = dt.added.clone();
+		hasNil = dt.hasNil;
+		nilTimestamp = dt.nilTimestamp;
+		nilAdded = dt.nilAdded;
+		size = dt.size;
+		hash = dt.hash;
+		buckets = new MerkleTree(dt.buckets);
+		oldest = dt.oldest;
+	}
+
+	private void init(int capacity) {
+		msbs = new long[capacity];
+		lsbs = new long[capacity];
+		timestamps = new long[capacity];
+		added = new long[capacity];
+		size = 0;
+		hasNil = false;
+		hash = 0;
+		buckets = new MerkleTree();
+		oldest = Long.MAX_VALUE;
+	}
+
+	@Override
 	public boolean add(UUID uuid) {
-		timestamps.put(uuid, new Long(new Date().getTime()));
-		return super.add(uuid);
+		return add(uuid, new Date().getTime());
 	}
 
+	/**
+	 * Stores a deleted task, if it was already there only its timestamp is
+	 * updated and false is returned. Either way it counts as added now.
+	 */
 	public boolean add(UUID uuid, long timestamp) {
-		timestamps.put(uuid, new Long(timestamp));
-		return super.add(uuid);
+		return put(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), timestamp, new Date().getTime());
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		if(!(o instanceof UUID)) {
+			return false;
+		}
+		UUID uuid = (UUID)o;
+		return find(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()) != -1;
 	}
 
+	/**
+	 * Returns the deletion timestamp of a task, which must be deleted.
+	 */
 	public long getTimestamp(UUID uuid) {
-		return (timestamps.get(uuid)).longValue();
+		int i = find(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+		if(i == -1) {
+			throw new NoSuchElementException(uuid.toString());
+		}
+		return i == -2 ? nilTimestamp : timestamps[i];
+	}
+
+	/**
+	 * Returns when a tombstone was added here, received from a peer or not.
+	 */
+	public long getAdded(UUID uuid) {
+		int i = find(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+		if(i == -1) {
+			throw new NoSuchElementException(uuid.toString());
+		}
+		return i == -2 ? nilAdded : added[i];
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		if(!(o instanceof UUID)) {
+			return false;
+		}
+		UUID uuid = (UUID)o;
+		int i = find(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+		if(i == -1) {
+			return false;
+		}
+		if(i == -2) {
+			hasNil = false;
+		} else {
+			delete(i);
+		}
+		size--;
+		hashOut(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+		modCount++;
+		return true;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Order independent hash of the tombstones, see Digest.
+	 */
+	long hash() {
+		return hash;
+	}
+
+	/**
+	 * Hashes of the tombstones by UUID prefix, see MerkleTree.
+	 */
+	MerkleTree merkleTree() {
+		return buckets;
+	}
+
+	/**
+	 * Returns the tombstones of the tasks deleted at or after the given
+	 * date, this set itself when none is older.
+	 */
+	DeletedTasks since(long date) {
+		if(oldest >= date) {
+			return this;
+		}
+		DeletedTasks dt = new DeletedTasks();
+		for(UUID uuid : this) {
+			long timestamp = getTimestamp(uuid);
+			if(timestamp >= date) {
+				dt.add(uuid, timestamp);
+			}
+		}
+		return dt;
+	}
+
+	/**
+	 * Returns the tombstones of the given leaves of the MerkleTree.
+	 */
+	public DeletedTasks inBuckets(boolean[] leaves) {
+		DeletedTasks dt = new DeletedTasks();
+		for(UUID uuid : this) {
+			if(leaves[MerkleTree.bucket(uuid.getMostSignificantBits())]) {
+				dt.add(uuid, getTimestamp(uuid));
+			}
+		}
+		return dt;
+	}
+
+	private void hashIn(long msb, long lsb) {
+		long h = Digest.hash(msb, lsb);
+		hash += h;
+		buckets.add(msb, h);
+	}
+
+	private void hashOut(long msb, long lsb) {
+		long h = Digest.hash(msb, lsb);
+		hash -= h;
+		buckets.remove(msb, h);
+	}
+
+	@Override
+	public void clear() {
+		init(MIN_CAPACITY);
+		modCount++;
 	}
 
 	/**
 	 * Clear all the deleted tasks older than a given timestamp
 	 */
 	public void clearDeletedTask(long timestamp) {
-		for (UUID uuid : this) {
-			if (this.getTimestamp(uuid) < timestamp) {
-				this.remove(uuid);
+		retain(timestamp, false);
+	}
+
+	/**
+	 * Clears the deleted tasks added here before a given date, however old
+	 * their deletion is.
+	 */
+	public void clearAddedBefore(long date) {
+		retain(date, true);
+	}
+
+	/**
+	 * Keeps the tombstones whose timestamp, or date of addition, is at or
+	 * after the given one.
+	 */
+	private void retain(long date, boolean byAdded) {
+		long[] m = msbs;
+		long[] l = lsbs;
+		long[] t = timestamps;
+		long[] a = added;
+		boolean nil = hasNil && (byAdded ? nilAdded : nilTimestamp) >= date;
+		long nilT = nilTimestamp;
+		long nilA = nilAdded;
+		init(m.length);
+		for(int i = 0; i < m.length; i++) {
+			if((m[i] != 0 || l[i] != 0) && (byAdded ? a[i] : t[i]) >= date) {
+				put(m[i], l[i], t[i], a[i]);
+			}
+		}
+		if(nil) {
+			put(0, 0, nilT, nilA);
+		}
+		modCount++;
+	}
+
+	@Override
+	public Iterator<UUID> iterator() {
+		return new Iterator<UUID>() {
+			private final int expectedModCount = modCount;
+			private int next = hasNil ? -2 : advance(0);
+
+			public boolean hasNext() {
+				return next != -1;
+			}
+
+			public UUID next() {
+				if(modCount != expectedModCount) {
+					throw new ConcurrentModificationException();
+				}
+				if(next == -1) {
+					throw new NoSuchElementException();
+				}
+				UUID uuid;
+				if(next == -2) {
+					uuid = new UUID(0, 0);
+					next = advance(0);
+				} else {
+					uuid = new UUID(msbs[next], lsbs[next]);
+					next = advance(next + 1);
+				}
+				return uuid;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			private int advance(int i) {
+				while(i < msbs.length) {
+					if(msbs[i] != 0 || lsbs[i] != 0) {
+						return i;
+					}
+					i++;
+				}
+				return -1;
+			}
+		};
+	}
+
+	private static int hash(long msb, long lsb) {
+		long h = msb ^ (lsb * 0x9E3779B97F4A7C15L);
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return (int)h;
+	}
+
+	/**
+	 * Returns the slot of a UUID, -2 for the nil UUID or -1 if it is absent.
+	 */
+	private int find(long msb, long lsb) {
+		if(msb == 0 && lsb == 0) {
+			return hasNil ? -2 : -1;
+		}
+		int mask = msbs.length - 1;
+		int i = hash(msb, lsb) & mask;
+		while(msbs[i] != 0 || lsbs[i] != 0) {
+			if(msbs[i] == msb && lsbs[i] == lsb) {
+				return i;
+			}
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	private boolean put(long msb, long lsb, long timestamp, long date) {
+		oldest = Math.min(oldest, timestamp);
+		if(msb == 0 && lsb == 0) {
+			boolean isNew = !hasNil;
+			hasNil = true;
+			nilTimestamp = timestamp;
+			nilAdded = date;
+			if(isNew) {
+				size++;
+				hashIn(msb, lsb);
+				modCount++;
+			}
+			return isNew;
+		}
+		int mask = msbs.length - 1;
+		int i = hash(msb, lsb) & mask;
+		while(msbs[i] != 0 || lsbs[i] != 0) {
+			if(msbs[i] == msb && lsbs[i] == lsb) {
+				timestamps[i] = timestamp;
+				added[i] = date;
+				return false;
+			}
+			i = (i + 1) & mask;
+		}
+		msbs[i] = msb;
+		lsbs[i] = lsb;
+		timestamps[i] = timestamp;
+		added[i] = date;
+		size++;
+		hashIn(msb, lsb);
+		modCount++;
+		// Keep the table at most two thirds full
+		if(3 * size > 2 * msbs.length) {
+			resize(msbs.length * 2);
+		}
+		return true;
+	}
+
+	/**
+	 * Empties a slot and moves back the entries of the same probe sequence.
+	 */
+	private void delete(int i) {
+		int mask = msbs.length - 1;
+		int j = i;
+		while(true) {
+			j = (j + 1) & mask;
+			if(msbs[j] == 0 && lsbs[j] == 0) {
+				break;
+			}
+			int k = hash(msbs[j], lsbs[j]) & mask;
+			// Move j into the hole unless its home slot k lies cyclically in (i, j]
+			if((i < j) ? (i < k && k <= j) : (i < k || k <= j)) {
+				continue;
+			}
+			msbs[i] = msbs[j];
+			lsbs[i] = lsbs[j];
+			timestamps[i] = timestamps[j];
+			added[i] = added[j];
+			i = j;
+		}
+		msbs[i] = 0;
+		lsbs[i] = 0;
+		timestamps[i] = 0;
+		added[i] = 0;
+	}
+
+	private void resize(int capacity) {
+		long[] m = msbs;
+		long[] l = lsbs;
+		long[] t = timestamps;
+		long[] a = added;
+		boolean nil = hasNil;
+		long nilT = nilTimestamp;
+		long nilA = nilAdded;
+		init(capacity);
+		for(int i = 0; i < m.length; i++) {
+			if(m[i] != 0 || l[i] != 0) {
+				put(m[i], l[i], t[i], a[i]);
 			}
 		}
+		if(nil) {
+			put(0, 0, nilT, nilA);
+		}
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeInt(size);
+		for(UUID uuid : this) {
+			out.writeLong(uuid.getMostSignificantBits());
+			out.writeLong(uuid.getLeastSignificantBits());
+			out.writeLong(getTimestamp(uuid));
+			out.writeLong(getAdded(uuid));
+		}
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		int n = in.readInt();
+		int capacity = MIN_CAPACITY;
+		while(3 * n > 2 * capacity) {
+			capacity *= 2;
+		}
+		init(capacity);
+		for(int i = 0; i < n; i++) {
+			put(in.readLong(), in.readLong(), in.readLong(), in.readLong());
+		}
 	}
 
 	public String jsonify() {
@@ -66,17 +455,15 @@ public class DeletedTasks extends ArrayList<UUID> implements Serializable {
 		JSONArray jsonTimestamps = new JSONArray();
 		JSONObject jsonTTemp;
 		try {
-			for (int i = 0; i < this.size(); i++)
-				jsonUUIDs.put(this.get(i).toString());
+			for (UUID uuid : this)
+				jsonUUIDs.put(uuid.toString());
 			jsonDT.put("uuids", jsonUUIDs.toString());
 			Log.d(TAG, "Added uuids to json");
 
-			for (Map.Entry<UUID, Long> entry : timestamps.entrySet()) {
+			for (UUID uuid : this) {
 				jsonTTemp = new JSONObject();
-				UUID key = entry.getKey();
-				jsonTTemp.put("uuid", key.toString());
-				Long value = entry.getValue();
-				jsonTTemp.put("timestamp", value);
+				jsonTTemp.put("uuid", uuid.toString());
+				jsonTTemp.put("timestamp", getTimestamp(uuid));
 				jsonTimestamps.put(jsonTTemp.toString());
 			}
 			jsonDT.put("timestamps", jsonTimestamps.toString());
@@ -92,20 +479,24 @@ public class DeletedTasks extends ArrayList<UUID> implements Serializable {
 	public void unJsonify(String json) {
 		try {
 			JSONObject jsonDT = new JSONObject(json);
-			JSONArray jsonUUIDs = new JSONArray(jsonDT.getString("uuids"));
-			for (int i = 0; i < this.size(); i++)
-				this.add(UUID.fromString(jsonUUIDs.getString(i)));
-			Log.d(TAG, "Recreated uuids from json");
-
 			JSONArray jsonTimestamps = new JSONArray(jsonDT.getString("timestamps"));
 			JSONObject jsonTTemp;
 			for (int i = 0; i < jsonTimestamps.length(); i++) {
 				jsonTTemp = new JSONObject(jsonTimestamps.getString(i));
-				timestamps.put(UUID.fromString(jsonTTemp.getString("uuid")), jsonTTemp.getLong("timestamp"));
+				this.add(UUID.fromString(jsonTTemp.getString("uuid")), jsonTTemp.getLong("timestamp"));
 			}
 			Log.d(TAG, "Recreated timestamps from json");
+
+			// UUIDs without a timestamp are deleted now
+			JSONArray jsonUUIDs = new JSONArray(jsonDT.getString("uuids"));
+			for (int i = 0; i < jsonUUIDs.length(); i++) {
+				UUID uuid = UUID.fromString(jsonUUIDs.getString(i));
+				if (!this.contains(uuid))
+					this.add(uuid);
+			}
+			Log.d(TAG, "Recreated uuids from json");
 		} catch (JSONException e) {
 			Log.e(TAG, "Exception while unjsonifying");
 		}
 	}
-} 
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2013-14 Nicolas Miller, Florian Paindorge
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package fr.syncarnet.tasks;
+
+import java.util.UUID;
+
+/**
+ * Summary of the content of a TaskList: the number of tasks and tombstones
+ * and a hash of each set. The hashes are sums of the hashes of the elements,
+ * so they do not depend on the order and are kept up to date in constant
+ * time on each change. Two lists with the same digest are considered equal.
+ */
+public final class Digest {
+	private final int tasks;
+	private final int deleted;
+	private final long tasksHash;
+	private final long deletedHash;
+
+	public Digest(int tasks, int deleted, long tasksHash, long deletedHash) {
+		this.tasks = tasks;
+		this.deleted = deleted;
+		this.tasksHash = tasksHash;
+		this.deletedHash = deletedHash;
+	}
+
+	public int getTasks() {
+		return tasks;
+	}
+
+	public int getDeleted() {
+		return deleted;
+	}
+
+	public long getTasksHash() {
+		return tasksHash;
+	}
+
+	public long getDeletedHash() {
+		return deletedHash;
+	}
+
+	/**
+	 * Hash of a version of a task, given by its last change date.
+	 */
+	static long hash(UUID uuid, long changed) {
+		return hash(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits() ^ mix(changed));
+	}
+
+	/**
+	 * Hash of a tombstone. The deletion date is left out since both peers
+	 * keep their own date when they deleted the same task.
+	 */
+	static long hash(long msb, long lsb) {
+		return mix(msb ^ mix(lsb));
+	}
+
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if(!(o instanceof Digest)) {
+			return false;
+		}
+		Digest d = (Digest)o;
+		return tasks == d.tasks && deleted == d.deleted
+			&& tasksHash == d.tasksHash && deletedHash == d.deletedHash;
+	}
+
+	@Override
+	public int hashCode() {
+		return (int)(tasksHash ^ deletedHash) ^ tasks ^ deleted;
+	}
+
+	@Override
+	public String toString() {
+		return tasks + " tasks, " + deleted + " deleted, " + Long.toHexString(tasksHash) + "/" + Long.toHexString(deletedHash);
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2013-14 Nicolas Miller, Florian Paindorge
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package fr.syncarnet.tasks;
+
+import java.util.UUID;
+
+/**
+ * Hashes of the tasks and tombstones grouped by the first byte of their
+ * UUID, in a tree of two levels of 16 children.
+ *
+ * A leaf is the sum of the hashes of its elements (see Digest) and a node
+ * the sum of its leaves, so adding or removing an element only changes one
+ * leaf. Two peers compare the 16 nodes first, then the leaves of the nodes
+ * which differ, and only have to exchange the elements of the leaves which
+ * differ.
+ */
+public class MerkleTree {
+	public static final int FANOUT = 16;
+	public static final int LEAVES = FANOUT * FANOUT;
+
+	private final long[] leaves = new long[LEAVES];
+
+	public MerkleTree() {
+	}
+
+	public MerkleTree(MerkleTree t) {
+		System.arraycopy(t.leaves, 0, leaves, 0, LEAVES);
+	}
+
+	/**
+	 * Returns the leaf holding the given UUID.
+	 */
+	public static int bucket(UUID uuid) {
+		return bucket(uuid.getMostSignificantBits());
+	}
+
+	static int bucket(long msb) {
+		return (int)(msb >>> 56);
+	}
+
+	void add(long msb, long hash) {
+		leaves[bucket(msb)] += hash;
+	}
+
+	void remove(long msb, long hash) {
+		leaves[bucket(msb)] -= hash;
+	}
+
+	void clear() {
+		for(int i = 0; i < LEAVES; i++) {
+			leaves[i] = 0;
+		}
+	}
+
+	/**
+	 * Adds the elements of another tree to this one.
+	 */
+	public MerkleTree addAll(MerkleTree t) {
+		for(int i = 0; i < LEAVES; i++) {
+			leaves[i] += t.leaves[i];
+		}
+		return this;
+	}
+
+	/**
+	 * Returns the hashes of the nodes under the root.
+	 */
+	public long[] getNodes() {
+		long[] nodes = new long[FANOUT];
+		for(int i = 0; i < LEAVES; i++) {
+			nodes[i / FANOUT] += leaves[i];
+		}
+		return nodes;
+	}
+
+	/**
+	 * Returns the hashes of the leaves under a node.
+	 */
+	public long[] getLeaves(int node) {
+		long[] l = new long[FANOUT];
+		System.arraycopy(leaves, node * FANOUT, l, 0, FANOUT);
+		return l;
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2013-14 Nicolas Miller, Florian Paindorge
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package fr.syncarnet.tasks;
+
+import java.io.Serializable;
+import java.util.UUID;
+
+/**
+ * A change of a task made on a device: its creation or edition, or its
+ * deletion. Operations are numbered per device, and carry a clock which
+ * orders the changes of the same task made on different devices. The clock
+ * is the time of the change in milliseconds, unless the device has seen a
+ * later clock, so a change always comes after the ones it was made on even
+ * when the devices do not agree on the time.
+ */
+public final class Operation implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	final long device;
+	final long seq;
+	final long clock;
+	final UUID uuid;
+	final boolean deleted;
+
+	Operation(long device, long seq, long clock, UUID uuid, boolean deleted) {
+		this.device = device;
+		this.seq = seq;
+		this.clock = clock;
+		this.uuid = uuid;
+		this.deleted = deleted;
+	}
+
+	/**
+	 * Whether this operation wins over another change of the same task.
+	 */
+	boolean after(Operation op) {
+		if(clock != op.clock) {
+			return clock > op.clock;
+		}
+		return device > op.device;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if(!(o instanceof Operation)) {
+			return false;
+		}
+		Operation op = (Operation)o;
+		return device == op.device && seq == op.seq;
+	}
+
+	@Override
+	public int hashCode() {
+		return (int)(device ^ (device >>> 32)) ^ (int)seq;
+	}
+
+	@Override
+	public String toString() {
+		return (deleted ? "delete " : "set ") + uuid + " " + Long.toHexString(device) + ":" + seq + "@" + clock;
+	}
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2013-14 Nicolas Miller, Florian Paindorge
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package fr.syncarnet.tasks;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * The operations which made a task list what it is. Only the last operation
+ * of each task is kept since it overrides the previous ones, so the log has
+ * one entry per task and tombstone. The operations are also indexed by
+ * device and number, so the ones a peer has not seen according to its
+ * VersionVector are found without going through the whole log.
+ */
+public class OperationLog implements Serializable {
+	private static final long serialVersionUID = 1L;
+	private static final Random random = new Random();
+
+	// Identifies this device, kept by the copies of the log
+	private long device;
+	private long seq = 0;
+	private long clock = 0;
+	private final VersionVector seen = new VersionVector();
+	private final HashMap<UUID, Operation> latest = new HashMap<UUID, Operation>();
+	private final HashMap<Long, TreeMap<Long, Operation>> byDevice = new HashMap<Long, TreeMap<Long, Operation>>();
+
+	public OperationLog() {
+		do {
+			device = random.nextLong();
+		} while(device == 0);
+	}
+
+	public OperationLog(OperationLog log) {
+		device = log.device;
+		seq = log.seq;
+		clock = log.clock;
+		seen.merge(log.seen);
+		latest.putAll(log.latest);
+		for(Map.Entry<Long, TreeMap<Long, Operation>> e : log.byDevice.entrySet()) {
+			byDevice.put(e.getKey(), new TreeMap<Long, Operation>(e.getValue()));
+		}
+	}
+
+	public long getDevice() {
+		return device;
+	}
+
+	public long getClock() {
+		return clock;
+	}
+
+	/**
+	 * The operations of each device which are known, including the ones
+	 * overridden since.
+	 */
+	public VersionVector getSeen() {
+		return seen;
+	}
+
+	/**
+	 * Returns the last operation on a task, or null.
+	 */
+	public Operation get(UUID uuid) {
+		return latest.get(uuid);
+	}
+
+	public int size() {
+		return latest.size();
+	}
+
+	/**
+	 * Stamps a change made on this device.
+	 */
+	Operation record(UUID uuid, boolean deleted) {
+		clock = Math.max(clock + 1, System.currentTimeMillis());
+		Operation op = new Operation(device, ++seq, clock, uuid, deleted);
+		put(op);
+		seen.advance(device, seq);
+		return op;
+	}
+
+	/**
+	 * Takes an operation of a peer as the last one of its task.
+	 */
+	void apply(Operation op) {
+		clock = Math.max(clock, op.clock);
+		put(op);
+	}
+
+	/**
+	 * Marks what a peer has seen as seen, once its operations are applied.
+	 */
+	void merge(VersionVector v, long peerClock) {
+		seen.merge(v);
+		clock = Math.max(clock, peerClock);
+	}
+
+	/**
+	 * Drops the last operation of a task, once its tombstone is dropped.
+	 */
+	void forget(UUID uuid) {
+		Operation op = latest.remove(uuid);
+		if(op != null) {
+			unindex(op);
+		}
+	}
+
+	/**
+	 * Returns the operations a peer has not seen.
+	 */
+	public ArrayList<Operation> unseenBy(VersionVector peer) {
+		ArrayList<Operation> ops = new ArrayList<Operation>();
+		for(Map.Entry<Long, TreeMap<Long, Operation>> e : byDevice.entrySet()) {
+			ops.addAll(e.getValue().tailMap(peer.get(e.getKey()), false).values());
+		}
+		return ops;
+	}
+
+	/**
+	 * Returns the last operations which are deletions.
+	 */
+	ArrayList<Operation> deletions() {
+		ArrayList<Operation> ops = new ArrayList<Operation>();
+		for(Operation op : latest.values()) {
+			if(op.deleted) {
+				ops.add(op);
+			}
+		}
+		return ops;
+	}
+
+	private void put(Operation op) {
+		Operation old = latest.put(op.uuid, op);
+		if(old != null) {
+			unindex(old);
+		}
+		TreeMap<Long, Operation> ops = byDevice.get(op.device);
+		if(ops == null) {
+			ops = new TreeMap<Long, Operation>();
+			byDevice.put(op.device, ops);
+		}
+		ops.put(op.seq, op);
+	}
+
+	private void unindex(Operation op) {
+		TreeMap<Long, Operation> ops = byDevice.get(op.device);
+		ops.remove(op.seq);
+		if(ops.isEmpty()) {
+			byDevice.remove(op.device);
+		}
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2014 Nicolas Miller, Florian Paindorge
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package fr.syncarnet.tasks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Keeps the names of the projects having at least one task, with the number
+ * of tasks of each project. Adding or dropping a task from a project is
+ * constant time and every task of a project shares the same String instance.
+ */
+public class ProjectRegistry {
+	private static class Entry {
+		final String name;
+		int count = 0;
+		int position;
+
+		Entry(String name, int position) {
+			this.name = name;
+			this.position = position;
+		}
+	}
+
+	private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+	private final ArrayList<String> names = new ArrayList<String>();
+
+	/**
+	 * Counts one more task in the given project and returns the shared
+	 * instance of its name.
+	 * @param project
+	 * 	Can be <b>null</b>, then nothing is counted
+	 */
+	public String acquire(String project) {
+		if(project == null) {
+			return null;
+		}
+		Entry e = entries.get(project);
+		if(e == null) {
+			e = new Entry(project, names.size());
+			entries.put(project, e);
+			names.add(project);
+		}
+		e.count++;
+		return e.name;
+	}
+
+	/**
+	 * Counts one less task in the given project, the project is dropped when
+	 * it has no task left.
+	 */
+	public void release(String project) {
+		if(project == null) {
+			return;
+		}
+		Entry e = entries.get(project);
+		if(e == null || --e.count > 0) {
+			return;
+		}
+		entries.remove(project);
+		// Move the last name in the hole to avoid shifting the list
+		String last = names.remove(names.size() - 1);
+		if(e.position < names.size()) {
+			names.set(e.position, last);
+			entries.get(last).position = e.position;
+		}
+	}
+
+	/**
+	 * Returns the number of tasks in the given project.
+	 */
+	public int count(String project) {
+		Entry e = entries.get(project);
+		return e == null ? 0 : e.count;
+	}
+
+	public void clear() {
+		entries.clear();
+		names.clear();
+	}
+
+	/**
+	 * Returns the live list of the project names, it must not be modified.
+	 */
+	public ArrayList<String> getNames() {
+		return names;
+	}
+}
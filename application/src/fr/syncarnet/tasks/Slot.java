@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2014 Nicolas Miller, Florian Paindorge
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package fr.syncarnet.tasks;
+
+/**
+ * Position of a task inside a TaskList. It keeps a copy of the due date and
+ * priority the task had when it was inserted, so the task can still be found
+ * after it has been modified in place, and an insertion number which makes
+ * the order total. The project is kept as well so that the right project is
+ * released when the task leaves the list, and the last change date so that
+ * the right hash is taken out of the list digest.
+ */
+class Slot implements Comparable<Slot> {
+	final int due;
+	final int priority;
+	final long seq;
+	final String project;
+	long changed;
+
+	Slot(Task task, long seq) {
+		int d = task.getDueDay();
+		this.due = d != Task.NO_DUE ? d : Integer.MAX_VALUE;
+		this.priority = task.getPriority().ordinal();
+		this.seq = seq;
+		this.project = task.getProject();
+		this.changed = Math.max(task.getEntry(), task.getModified());
+	}
+
+	/**
+	 * Same order as Task.CompareWithDueAndPriority, ties being broken by
+	 * insertion order.
+	 */
+	public int compareTo(Slot s) {
+		if(due != s.due) {
+			return due < s.due ? -1 : 1;
+		}
+		if(priority != s.priority) {
+			return priority < s.priority ? -1 : 1;
+		}
+		if(seq != s.seq) {
+			return seq < s.seq ? -1 : 1;
+		}
+		return 0;
+	}
+}
@@ -36,18 +36,41 @@ import java.io.Serializable;
  * Each task in our todo list is an instance of this class
  */
 public class Task implements Serializable {
+	// Tasks saved with Calendars and an enum are read by TaskListInputStream
+	private static final long serialVersionUID = 2L;
 	private static final String TAG = "SynCarnet";
+	/** Value of getDueDay() for a task without due date */
+	public static final int NO_DUE = Integer.MIN_VALUE;
+	/** Tasks due within this many days are sent first during a sync */
+	public static final int URGENT_DAYS = 7;
+	/** Fields which are synchronized one by one, as bits of a mask */
+	public static final int DESCRIPTION = 0x01;
+	public static final int PROJECT = 0x02;
+	public static final int PRIORITY = 0x04;
+	public static final int DUE = 0x08;
+	public static final int ALL_FIELDS = 0x0F;
+	static final int FIELDS = 4;
+	private static final Priority[] PRIORITIES = Priority.values();
+	// One formatter for all the tasks, DateFormat is not thread safe
+	private static final DateFormat dateFormat = DateFormat.getDateInstance();
+
 	private String description;
 	private String project=null;
-	private Priority priority=Priority.MEDIUM;
+	private byte priority=(byte)Priority.MEDIUM.ordinal();
 	private UUID uuid;
 
-	// Dates as Unix Time integers
-	private Calendar due=null;
+	// Due date in days since 1970-01-01, entry and modification dates as Unix Time
+	private int due=NO_DUE;
 	private long entry;
 	private long modified=-1;
 
-	private DateFormat dateFormat = DateFormat.getDateInstance();
+	// The operation which last changed each field, by bit number, or null
+	// for a field which is not known or not stamped yet
+	private Operation[] stamps;
+	// Shared by the tasks with no field stamped, never written to
+	private static final Operation[] NO_STAMPS = new Operation[FIELDS];
+	// Fields changed since they were last stamped
+	private int dirty=ALL_FIELDS;
 
 	/* Constructors */
 	/** 
@@ -65,46 +88,77 @@ public class Task implements Serializable {
 		this.entry = new Date().getTime();
 		this.uuid = UUID.randomUUID();
 		this.description = description;
-		if(due != null) {
-			due.set(Calendar.HOUR_OF_DAY, 0);
-			due.set(Calendar.MINUTE, 0);
-			due.set(Calendar.SECOND, 0);
-			due.set(Calendar.MILLISECOND, 0);
-		}
-		this.due = due;
+		this.due = toDay(due);
 		if(project != null && !project.equals("")) {
 			this.project = project;
 		}
-		this.priority = priority;
+		this.priority = (byte)priority.ordinal();
 	}
 
 	public Task() {
 	}
 
+	/**
+	 * Rebuilds a task saved by the first versions, see TaskListInputStream.
+	 * None of its fields is stamped yet.
+	 */
+	static Task restore(UUID uuid, String description, String project, Priority priority, Calendar due, long entry, long modified) {
+		Task t = new Task();
+		t.uuid = uuid;
+		t.description = description;
+		t.project = project;
+		t.priority = (byte)(priority != null ? priority : Priority.MEDIUM).ordinal();
+		t.due = toDay(due);
+		t.entry = entry;
+		t.modified = modified;
+		return t;
+	}
+
+	/**
+	 * Copies a task, the copy has the same UUID.
+	 */
+	public Task(Task t) {
+		this(t.uuid, t.description, t.project, t.priority, t.due, t.entry, t.modified);
+		stamps = t.stamps != null && t.stamps != NO_STAMPS ? t.stamps.clone() : t.stamps;
+		dirty = t.dirty;
+	}
+
+	/**
+	 * Rebuilds a task from its fields as they were sent by a peer.
+	 */
+	Task(UUID uuid, String description, String project, byte priority, int due, long entry, long modified) {
+		this.uuid = uuid;
+		this.description = description;
+		this.project = project;
+		this.priority = priority;
+		this.due = due;
+		this.entry = entry;
+		this.modified = modified;
+		this.stamps = NO_STAMPS;
+		this.dirty = 0;
+	}
+
 	/* Setters */ 
 
 	public void setDescription(String description) {
 		this.modified = new Date().getTime();
+		this.dirty |= DESCRIPTION;
 		this.description = description;
 	}
 
 	/**
 	 * @param date
-	 * 	The new date in UNIX time
+	 * 	The new due date, only the day is kept
 	 */
 	public void setDue(Calendar date) {
 		this.modified = new Date().getTime();
-		if(date != null) {
-			date.set(Calendar.HOUR_OF_DAY, 0);
-			date.set(Calendar.MINUTE, 0);
-			date.set(Calendar.SECOND, 0);
-			date.set(Calendar.MILLISECOND, 0);
-		}
-		this.due = date;
+		this.dirty |= DUE;
+		this.due = toDay(date);
 	}
 
 	public void setProject(String project) {
 		this.modified = new Date().getTime();
+		this.dirty |= PROJECT;
 		if(project != null && project.equals("")) {
 			this.project = null;
 		} else {
@@ -112,13 +166,22 @@ public class Task implements Serializable {
 		}
 	}
 
+	/**
+	 * Replaces the project name by an equal shared instance, this is not a
+	 * modification of the task.
+	 */
+	void setInternedProject(String project) {
+		this.project = project;
+	}
+
 	/**
 	 * @param priority
 	 * 	LOW - MEDIUM - HIGH
 	 */
 	public void setPriority(Priority priority) {
 		this.modified = new Date().getTime();
-		this.priority = priority;
+		this.dirty |= PRIORITY;
+		this.priority = (byte)priority.ordinal();
 	}
 
 	/* Getters */
@@ -127,14 +190,32 @@ public class Task implements Serializable {
 	}
 
 	public String getFormattedDue() {
-		if(due != null) {
-			return dateFormat.format(due.getTime()); 
+		if(due != NO_DUE) {
+			synchronized(dateFormat) {
+				return dateFormat.format(getDue().getTime());
+			}
 		} else {
 			return "";
 		}
 	}
 
+	/**
+	 * Returns a new Calendar set to midnight of the due day, or null.
+	 */
 	public Calendar getDue() {
+		if(due == NO_DUE) {
+			return null;
+		}
+		Calendar c = Calendar.getInstance();
+		c.clear();
+		fromDay(due, c);
+		return c;
+	}
+
+	/**
+	 * Returns the due date as a number of days since 1970-01-01, or NO_DUE.
+	 */
+	public int getDueDay() {
 		return due;
 	}
 
@@ -143,7 +224,7 @@ public class Task implements Serializable {
 	}
 
 	public Priority getPriority() {
-		return priority;
+		return PRIORITIES[priority];
 	}
 
 	public long getEntry() {
@@ -157,31 +238,242 @@ public class Task implements Serializable {
 		return uuid;
 	}
 
+	/* Field stamps */
+
+	/**
+	 * Stamps the fields changed since the last call with the operation
+	 * recording the change, or all of them the first time.
+	 */
+	void stamp(Operation op) {
+		if(stamps == null) {
+			dirty = ALL_FIELDS;
+		}
+		if(dirty == 0) {
+			return;
+		}
+		Operation[] own = ownStamps();
+		for(int i = 0; i < FIELDS; i++) {
+			if((dirty & (1 << i)) != 0) {
+				own[i] = op;
+			}
+		}
+		dirty = 0;
+	}
+
+	/**
+	 * Returns the stamps of this task, which may then be changed.
+	 */
+	private Operation[] ownStamps() {
+		if(stamps == null || stamps == NO_STAMPS) {
+			stamps = new Operation[FIELDS];
+		}
+		return stamps;
+	}
+
+	/**
+	 * Returns the operation which last changed a field, or null.
+	 */
+	Operation getStamp(int field) {
+		return stamps != null ? stamps[Integer.numberOfTrailingZeros(field)] : null;
+	}
+
+	void setStamp(int field, Operation op) {
+		ownStamps()[Integer.numberOfTrailingZeros(field)] = op;
+	}
+
+	boolean isStamped() {
+		return stamps != null;
+	}
+
+	/**
+	 * Returns the mask of the fields this task holds, all of them for a task
+	 * which was never stamped and only the stamped ones otherwise.
+	 */
+	int getFields() {
+		if(stamps == null) {
+			return ALL_FIELDS;
+		}
+		int fields = 0;
+		for(int i = 0; i < FIELDS; i++) {
+			if(stamps[i] != null) {
+				fields |= 1 << i;
+			}
+		}
+		return fields;
+	}
+
+	/**
+	 * Returns the mask of the fields changed by operations a peer has not
+	 * seen.
+	 */
+	int unseenFields(VersionVector seen) {
+		int fields = dirty;
+		for(int i = 0; i < FIELDS; i++) {
+			Operation op = stamps != null ? stamps[i] : null;
+			if(op == null || op.seq > seen.get(op.device)) {
+				fields |= 1 << i;
+			}
+		}
+		return fields;
+	}
+
+	/**
+	 * Returns the mask of the fields of t changed after the same fields of
+	 * this task. A field edited in place since it was stamped counts as
+	 * changed at the last modification date.
+	 */
+	int newerFields(Task t) {
+		int fields = 0;
+		for(int i = 0; i < FIELDS; i++) {
+			Operation theirs = t.stampOf(i);
+			Operation mine = stampOf(i);
+			if(theirs != null && (mine == null || theirs.after(mine))) {
+				fields |= 1 << i;
+			}
+		}
+		return fields;
+	}
+
+	private Operation stampOf(int i) {
+		if((dirty & (1 << i)) != 0) {
+			// Recorded by no device yet
+			return new Operation(0, 0, Math.max(entry, modified), uuid, false);
+		}
+		return stamps != null ? stamps[i] : null;
+	}
+
+	/**
+	 * Returns a copy of this task with some fields taken from another
+	 * version of it.
+	 */
+	Task withFields(Task t, int fields) {
+		Task merged = new Task(this);
+		if(merged.stamps == null) {
+			merged.stamps = NO_STAMPS;
+		}
+		merged.copyFields(t, fields);
+		merged.dirty = (dirty & ~fields) | (t.dirty & fields);
+		merged.modified = Math.max(modified, t.modified);
+		return merged;
+	}
+
+	/**
+	 * Returns a copy of this task holding only some of its fields, the
+	 * others are neither set nor stamped.
+	 */
+	Task onlyFields(int fields) {
+		Task part = new Task(uuid, null, null, (byte)Priority.MEDIUM.ordinal(), NO_DUE, entry, modified);
+		part.copyFields(this, fields);
+		return part;
+	}
+
+	private void copyFields(Task t, int fields) {
+		if((fields & DESCRIPTION) != 0) {
+			description = t.description;
+		}
+		if((fields & PROJECT) != 0) {
+			project = t.project;
+		}
+		if((fields & PRIORITY) != 0) {
+			priority = t.priority;
+		}
+		if((fields & DUE) != 0) {
+			due = t.due;
+		}
+		for(int i = 0; i < FIELDS; i++) {
+			Operation op = t.getStamp(1 << i);
+			if((fields & (1 << i)) != 0 && op != stamps[i]) {
+				ownStamps()[i] = op;
+			}
+		}
+	}
+
 	/* Comparators */
 	public static class CompareWithDueAndPriority implements Comparator<Task> {
 		/**
 		 * Note : not consistent with task's .equals
 		 */
 		public int compare(Task t1, Task t2) {
-			Calendar d1 = t1.getDue();
-			Calendar d2 = t2.getDue();
-			if(d1!=null && d2!=null) {
-				int c = d1.compareTo(d2);
-				if(c==0) {
-					return t1.getPriority().compareTo(t2.getPriority());
-				} else {
-					return c;
+			// NO_DUE is negative but tasks without due date come last
+			if(t1.due != t2.due) {
+				if(t1.due == NO_DUE) {
+					return 1;
+				} else if(t2.due == NO_DUE) {
+					return -1;
 				}
-			} else if(d1==null && d2!=null) {
-				return 1;
-			} else if(d1!= null && d2==null) {
-				return -1;
-			} else {
-				return t1.getPriority().compareTo(t2.getPriority());
+				return t1.due < t2.due ? -1 : 1;
 			}
+			return t1.priority - t2.priority;
 		}
 	}
 
+	/**
+	 * Puts first the tasks which are overdue or due within URGENT_DAYS,
+	 * then the high priority ones, then the others. Each group keeps the
+	 * order of CompareWithDueAndPriority.
+	 */
+	public static class CompareWithUrgency implements Comparator<Task> {
+		private final CompareWithDueAndPriority order = new CompareWithDueAndPriority();
+		private final int soon;
+
+		public CompareWithUrgency() {
+			this(toDay(Calendar.getInstance()));
+		}
+
+		CompareWithUrgency(int today) {
+			soon = today + URGENT_DAYS;
+		}
+
+		public int compare(Task t1, Task t2) {
+			int r = rank(t1) - rank(t2);
+			return r != 0 ? r : order.compare(t1, t2);
+		}
+
+		private int rank(Task t) {
+			if(t.due != NO_DUE && t.due <= soon) {
+				return 0;
+			}
+			return t.priority == Priority.HIGH.ordinal() ? 1 : 2;
+		}
+	}
+
+	/* Day conversions, see http://howardhinnant.github.io/date_algorithms.html */
+
+	/**
+	 * Returns the day of the given calendar as a number of days since 1970-01-01,
+	 * regardless of its time zone.
+	 */
+	static int toDay(Calendar c) {
+		if(c == null) {
+			return NO_DUE;
+		}
+		int y = c.get(Calendar.YEAR);
+		int m = c.get(Calendar.MONTH) + 1;
+		int d = c.get(Calendar.DAY_OF_MONTH);
+		y -= m <= 2 ? 1 : 0;
+		int era = (y >= 0 ? y : y - 399) / 400;
+		int yoe = y - era * 400;
+		int doy = (153 * (m > 2 ? m - 3 : m + 9) + 2) / 5 + d - 1;
+		int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		return era * 146097 + doe - 719468;
+	}
+
+	/**
+	 * Sets the date fields of the given calendar to the given day.
+	 */
+	static void fromDay(int day, Calendar c) {
+		int z = day + 719468;
+		int era = (z >= 0 ? z : z - 146096) / 146097;
+		int doe = z - era * 146097;
+		int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		int mp = (5 * doy + 2) / 153;
+		int d = doy - (153 * mp + 2) / 5 + 1;
+		int m = mp < 10 ? mp + 3 : mp - 9;
+		int y = yoe + era * 400 + (m <= 2 ? 1 : 0);
+		c.set(y, m - 1, d);
+	}
+
 	/**
 	 * Compares two tasks whith their UUID.
 	 */
@@ -201,11 +493,11 @@ public class Task implements Serializable {
 			jsonTask.put("description", this.description);
 			String project = this.project != null ? this.project : "VAR_NULL";
 			jsonTask.put("project", project);
-			String priority = this.priority.toString();
+			String priority = getPriority().toString();
 			jsonTask.put("priority", priority);
 			String uuid = this.uuid.toString();
 			jsonTask.put("uuid", uuid);
-			long due = this.due != null ? this.due.getTimeInMillis() : 0;
+			long due = this.due != NO_DUE ? getDue().getTimeInMillis() : 0;
 			jsonTask.put("due", due);
 			jsonTask.put("entry", this.entry);
 			jsonTask.put("modified", this.modified);
@@ -222,7 +514,7 @@ public class Task implements Serializable {
 			this.description = jsonTask.getString("description");
 			String project = jsonTask.getString("project");
 			this.project = !project.equals("VAR_NULL") ? project : null;
-			this.priority = Priority.valueOf(jsonTask.getString("priority"));
+			this.priority = (byte)Priority.valueOf(jsonTask.getString("priority")).ordinal();
 			this.uuid = UUID.fromString(jsonTask.getString("uuid"));
 			Calendar due = null;
 			long dueMillis = jsonTask.getLong("due");
@@ -230,7 +522,7 @@ public class Task implements Serializable {
 				due = Calendar.getInstance();
 				due.setTimeInMillis(dueMillis);
 			}
-			this.due = due;
+			this.due = toDay(due);
 			this.entry = jsonTask.getLong("entry");
 			this.modified = jsonTask.getLong("modified");
 		} catch (JSONException e) {
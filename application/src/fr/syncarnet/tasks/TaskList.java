@@ -21,35 +21,263 @@ package fr.syncarnet.tasks;
 import android.util.Log;
 
 import java.util.UUID;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
-public class TaskList extends ArrayList<Task> implements Serializable {
+/**
+ * Tasks sorted by due date and priority. They are stored in an order
+ * statistic tree so that insertion, removal and access by position are all
+ * logarithmic, and indexed by UUID.
+ */
+public class TaskList extends AbstractList<Task> implements Serializable {
+	// Lists saved while TaskList was an ArrayList are read by TaskListInputStream
+	private static final long serialVersionUID = 2L;
 	private static final String TAG = "SynCarnet";
 	private DeletedTasks deletedTasks = new DeletedTasks();
-	private ArrayList<String> projects = new ArrayList<String>();
+	private OperationLog log = new OperationLog();
+	// The tasks, the slot of each task by UUID and the projects of the tasks,
+	// rebuilt after deserialization
+	private transient TaskTree tree = new TaskTree();
+	private transient HashMap<UUID, Slot> slots = new HashMap<UUID, Slot>();
+	private transient long nextSeq = 0;
+	private transient ProjectRegistry projects = new ProjectRegistry();
+	// Sum of the hashes of the tasks, see Digest, and the same by UUID prefix
+	private transient long tasksHash = 0;
+	private transient MerkleTree buckets = new MerkleTree();
+
+	public TaskList() {
+	}
+
+	/**
+	 * Copies a task list and its tasks, so that the copy is not affected by
+	 * later edits of the original.
+	 */
+	public TaskList(TaskList tl) {
+		ArrayList<Task> tasks = new ArrayList<Task>(tl.size());
+		for(Task t : tl) {
+			tasks.add(new Task(t));
+		}
+		// Tasks edited in place may have moved
+		Collections.sort(tasks, new Task.CompareWithDueAndPriority());
+		deletedTasks = new DeletedTasks(tl.deletedTasks);
+		log = new OperationLog(tl.log);
+		addAllSorted(tasks);
+	}
 
 	/**
 	 * Inserts a new task at the adequate position based on its due date and priority.
+	 * A task which is already in the list is moved to its new position, and
+	 * a deleted one is restored. The fields changed since the task was last
+	 * added are stamped with the operation recording the change.
 	 */
 	@Override
 	public boolean add(Task task) {
-		Task.CompareWithDueAndPriority comparator = new Task.CompareWithDueAndPriority();
-		int i = Collections.binarySearch(this, task, comparator); 
-		i = (i<0) ? (-i)-1 : ++i;
-		super.add(i, task);
-		if(!projects.contains(task.getProject()) && task.getProject() != null) {
-			projects.add(task.getProject());
-		}
+		insert(task);
+		deletedTasks.remove(task.getUUID());
+		task.stamp(log.record(task.getUUID(), false));
 		return true;
 	}
 
+	private void insert(Task task) {
+		Slot old = slots.get(task.getUUID());
+		if(old != null) {
+			tree.remove(old);
+			projects.release(old.project);
+			hashOut(task.getUUID(), old.changed);
+		}
+		task.setInternedProject(projects.acquire(task.getProject()));
+		Slot slot = new Slot(task, nextSeq++);
+		tree.insert(slot, task);
+		slots.put(task.getUUID(), slot);
+		hashIn(task.getUUID(), slot.changed);
+		modCount++;
+	}
+
+	/**
+	 * Same as add(task), the position is given by the due date and priority.
+	 */
+	@Override
+	public void add(int position, Task task) {
+		add(task);
+	}
+
+	@Override
+	public boolean addAll(Collection<? extends Task> c) {
+		for(Task t : c) {
+			add(t);
+		}
+		return !c.isEmpty();
+	}
+
+	@Override
+	public Task get(int position) {
+		return tree.get(position);
+	}
+
+	@Override
+	public int size() {
+		return tree.size();
+	}
+
+	@Override
+	public Iterator<Task> iterator() {
+		return tree.iterator();
+	}
+
+	/**
+	 * Replaces the task at the given position. The new task is added as by
+	 * add, so it goes where its due date and priority put it, and the old
+	 * one is removed unless it has the same UUID.
+	 */
+	@Override
+	public Task set(int position, Task task) {
+		Task old = tree.get(position);
+		if(!old.getUUID().equals(task.getUUID())) {
+			remove(old);
+		}
+		add(task);
+		return old;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return o instanceof Task && slots.containsKey(((Task)o).getUUID());
+	}
+
+	/**
+	 * Finds a task from its UUID in logarithmic time.
+	 */
+	@Override
+	public int indexOf(Object o) {
+		if(!(o instanceof Task)) {
+			return -1;
+		}
+		Slot slot = slots.get(((Task)o).getUUID());
+		if(slot == null) {
+			return -1;
+		}
+		return tree.indexOf(slot);
+	}
+
+	/**
+	 * Returns the task with the given UUID or null if there is none.
+	 */
+	Task getTask(UUID uuid) {
+		Slot slot = slots.get(uuid);
+		return slot != null ? tree.get(slot) : null;
+	}
+
+	@Override
+	public int lastIndexOf(Object o) {
+		return indexOf(o);
+	}
+
+	@Override
+	public void clear() {
+		tree.clear();
+		slots.clear();
+		tasksHash = 0;
+		buckets.clear();
+		projects.clear();
+		modCount++;
+	}
+
+	/**
+	 * Returns a summary of the tasks and tombstones, equal for two lists
+	 * holding the same versions of the same tasks and the same tombstones.
+	 * The tombstones a peer may have dropped are left out, see
+	 * TombstoneCompactor.horizon.
+	 */
+	public Digest digest() {
+		return digest(TombstoneCompactor.horizon(new Date().getTime()));
+	}
+
+	/**
+	 * Same as digest(), without the tombstones older than horizon.
+	 */
+	public Digest digest(long horizon) {
+		DeletedTasks dt = deletedTasks.since(horizon);
+		return new Digest(size(), dt.size(), tasksHash, dt.hash());
+	}
+
+	/**
+	 * Returns the hashes of the tasks and tombstones by UUID prefix, without
+	 * the tombstones left out of the digest.
+	 */
+	public MerkleTree merkleTree() {
+		return merkleTree(TombstoneCompactor.horizon(new Date().getTime()));
+	}
+
+	/**
+	 * Same as merkleTree(), without the tombstones older than horizon.
+	 */
+	public MerkleTree merkleTree(long horizon) {
+		return new MerkleTree(buckets).addAll(deletedTasks.since(horizon).merkleTree());
+	}
+
+	/**
+	 * Returns the tasks and tombstones of the given leaves of the MerkleTree.
+	 */
+	public TaskList inBuckets(boolean[] leaves) {
+		ArrayList<Task> tasks = new ArrayList<Task>();
+		for(Task t : this) {
+			if(leaves[MerkleTree.bucket(t.getUUID())]) {
+				tasks.add(t);
+			}
+		}
+		TaskList tl = new TaskList();
+		tl.addAllSorted(tasks);
+		tl.setDeletedTasks(deletedTasks.inBuckets(leaves));
+		return tl;
+	}
+
+	/**
+	 * Returns the tasks and tombstones whose last operation has not been
+	 * seen by a peer, with these operations in its log. The tasks only hold
+	 * the fields the peer has not seen, those it has seen in full are left
+	 * out.
+	 */
+	public TaskList unseenBy(VersionVector peer) {
+		ArrayList<Task> tasks = new ArrayList<Task>();
+		DeletedTasks dt = new DeletedTasks();
+		OperationLog ops = new OperationLog();
+		for(Operation op : log.unseenBy(peer)) {
+			if(op.deleted) {
+				if(deletedTasks.contains(op.uuid)) {
+					dt.add(op.uuid, deletedTasks.getTimestamp(op.uuid));
+					ops.apply(op);
+				}
+			} else {
+				Task t = getTask(op.uuid);
+				int fields = t != null ? t.unseenFields(peer) : 0;
+				if(fields != 0) {
+					tasks.add(fields == Task.ALL_FIELDS ? t : t.onlyFields(fields));
+					ops.apply(op);
+				}
+			}
+		}
+		Collections.sort(tasks, new Task.CompareWithDueAndPriority());
+		TaskList tl = new TaskList();
+		tl.addAllSorted(tasks);
+		tl.setDeletedTasks(dt);
+		tl.setLog(ops);
+		return tl;
+	}
+
 	/**
 	 * Returns whether or not a Task has been deleted from the TaskList
 	 */
@@ -62,10 +290,36 @@ public class TaskList extends ArrayList<Task> implements Serializable {
 	 */
 	public void clearDeleted() {
 		deletedTasks.clear();
+		forgetDeleted();
 	}
 
+	/**
+	 * Drops the deletions of the operation log whose tombstones are gone.
+	 */
+	void forgetDeleted() {
+		for(Operation op : log.deletions()) {
+			if(!deletedTasks.contains(op.uuid)) {
+				log.forget(op.uuid);
+			}
+		}
+	}
+
+	/**
+	 * Returns the log of the operations which made this list.
+	 */
+	public OperationLog getLog() {
+		return log;
+	}
+
+	void setLog(OperationLog log) {
+		this.log = log;
+	}
+
+	/**
+	 * Returns the live list of the projects having tasks.
+	 */
 	public ArrayList<String> getProjects() {
-		return projects;
+		return projects.getNames();
 	}
 
 	/**
@@ -73,22 +327,21 @@ public class TaskList extends ArrayList<Task> implements Serializable {
 	 */
 	@Override
 	public boolean remove(Object o) {
-		boolean r = super.remove(o);
-		deletedTasks.add(((Task)o).getUUID());
-		cleanProjects(((Task)o).getProject());
+		UUID uuid = ((Task)o).getUUID();
+		boolean r = removeTask(o);
+		if(deletedTasks.add(uuid) || r) {
+			log.record(uuid, true);
+		}
 		return r;
 	}
 
 	/**
-	 * Removes a task from the TaskList and stores its UUID, also
-	 * removes the given project from the project list (useful when changing
-	 * a task's project).
+	 * Removes a task from the TaskList and stores its UUID. The project the
+	 * task had when it was added is the one released, so the given project
+	 * is only kept for compatibility.
 	 */
 	public boolean remove(Object o, String project) {
-		boolean r = super.remove(o);
-		deletedTasks.add(((Task)o).getUUID());
-		cleanProjects(project);
-		return r;
+		return remove(o);
 	}
 
 	/**
@@ -96,59 +349,69 @@ public class TaskList extends ArrayList<Task> implements Serializable {
 	 */
 	@Override
 	public Task remove(int position) {
-		Task task = super.remove(position);
+		Task task = tree.get(position);
+		Slot slot = slots.remove(task.getUUID());
+		tree.remove(slot);
+		projects.release(slot.project);
+		hashOut(task.getUUID(), slot.changed);
+		modCount++;
 		deletedTasks.add(task.getUUID());
-		cleanProjects(task.getProject());
+		log.record(task.getUUID(), true);
 		return task;
 	}
 
-	private void cleanProjects(String project) {
-		boolean finished = true;
-		int i = 0;
-		int len = this.size();
-		while(i < len && finished) {
-			Task t = get(i);
-			if(t.getProject() != null && t.getProject().equals(project)) {
-				finished = false;
-			}
-			i++;
-		}
-		if(finished) {
-			projects.remove(project);
+	private boolean removeTask(Object o) {
+		Slot slot = slots.remove(((Task)o).getUUID());
+		if(slot == null) {
+			return false;
 		}
+		tree.remove(slot);
+		projects.release(slot.project);
+		hashOut(((Task)o).getUUID(), slot.changed);
+		modCount++;
+		return true;
 	}
 
 	/**
-	 * Merges two TaskLists into one
+	 * Merges two TaskLists into one, tl1 being the received list and tl2 the
+	 * local one. See TaskMerger, which can also merge a list while it is
+	 * received. Neither of the given lists is modified.
 	 */
 	public static TaskList merge(TaskList tl1, TaskList tl2) {
-		TaskList tf = tl2;
-		Task t2;
-		for(Task t : tf) {
-			if(tl1.deleted(t)) {
-				tf.remove(t);
-			}
-		}
+		TaskMerger merger = new TaskMerger(tl2);
+		merger.addDeleted(tl1.deletedTasks);
 		for(Task t : tl1) {
-			int pos = tf.indexOf(t);
-			if(pos == -1) {
-				if(!tf.deleted(t)) {
-					tf.add(t);
-				}
-			} else {
-				t2 = tf.get(pos);
-				if(t.getModified() != t2.getModified()) {
-					if(t.getDue() != null && t.getDue().equals(t2.getDue()) &&
-							t.getPriority().equals(t2.getPriority())) {
-						tf.set(pos, (t.getModified()>t2.getModified()) ? t : t2);
-					} else {
-						tf.remove(pos);
-						tf.add((t.getModified()>t2.getModified()) ? t : t2);
-					}
-				}
-			}
+			merger.add(t);
 		}
-		return tf;
+		return merger.finish();
+	}
+
+	private void hashIn(UUID uuid, long changed) {
+		long h = Digest.hash(uuid, changed);
+		tasksHash += h;
+		buckets.add(uuid.getMostSignificantBits(), h);
+	}
+
+	private void hashOut(UUID uuid, long changed) {
+		long h = Digest.hash(uuid, changed);
+		tasksHash -= h;
+		buckets.remove(uuid.getMostSignificantBits(), h);
+	}
+
+	/**
+	 * Appends tasks which are already in the order used by add.
+	 */
+	void addAllSorted(ArrayList<Task> sorted) {
+		ArrayList<Slot> sortedSlots = new ArrayList<Slot>(sorted.size());
+		for(Task t : sorted) {
+			t.setInternedProject(projects.acquire(t.getProject()));
+			Slot slot = new Slot(t, nextSeq++);
+			slots.put(t.getUUID(), slot);
+			hashIn(t.getUUID(), slot.changed);
+			sortedSlots.add(slot);
+		}
+		tree.build(sortedSlots, sorted);
+		modCount++;
 	}
 
 	public void setDeletedTasks(DeletedTasks dt) {
@@ -159,6 +422,70 @@ public class TaskList extends ArrayList<Task> implements Serializable {
 		return deletedTasks;
 	}
 
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeInt(size());
+		for(Task t : this) {
+			out.writeObject(t);
+		}
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		int size = in.readInt();
+		ArrayList<Task> tasks = new ArrayList<Task>(size);
+		for(int i = 0; i < size; i++) {
+			tasks.add((Task)in.readObject());
+		}
+		Collections.sort(tasks, new Task.CompareWithDueAndPriority());
+		tree = new TaskTree();
+		slots = new HashMap<UUID, Slot>();
+		nextSeq = 0;
+		projects = new ProjectRegistry();
+		tasksHash = 0;
+		buckets = new MerkleTree();
+		addAllSorted(tasks);
+		if(log == null) {
+			// Saved before the operation log, everything becomes a local change
+			log = new OperationLog();
+			for(UUID uuid : deletedTasks) {
+				log.record(uuid, true);
+			}
+		}
+		for(Task t : tasks) {
+			if(!t.isStamped()) {
+				// Saved before the fields were stamped
+				t.stamp(log.record(t.getUUID(), false));
+			}
+		}
+	}
+
+	/**
+	 * Builds a list from the tasks and tombstones of a list saved by the
+	 * first versions, see TaskListInputStream. Everything becomes a local
+	 * change.
+	 */
+	static TaskList migrate(ArrayList<Task> tasks, DeletedTasks dt) {
+		ArrayList<Task> sorted = new ArrayList<Task>(tasks);
+		Collections.sort(sorted, new Task.CompareWithDueAndPriority());
+		TaskList tl = new TaskList();
+		if(dt != null) {
+			tl.setDeletedTasks(dt);
+		}
+		for(Task t : sorted) {
+			// The first versions removed and added back an edited task
+			tl.deletedTasks.remove(t.getUUID());
+		}
+		for(UUID uuid : tl.deletedTasks) {
+			tl.log.record(uuid, true);
+		}
+		tl.addAllSorted(sorted);
+		for(Task t : sorted) {
+			t.stamp(tl.log.record(t.getUUID(), false));
+		}
+		return tl;
+	}
+
 	public String jsonify() {
 		JSONObject jsonTL = new JSONObject();
 		JSONArray jsonTasks = new JSONArray();
@@ -172,8 +499,8 @@ public class TaskList extends ArrayList<Task> implements Serializable {
 			jsonTL.put("deletedTasks", deletedTasks.jsonify());
 			Log.d(TAG, "Added deleted tasks to json");
 
-			for (int i = 0; i < projects.size(); i++)
-				jsonProjects.put(projects.get(i));
+			for (String project : projects.getNames())
+				jsonProjects.put(project);
 			jsonTL.put("projects", jsonProjects.toString());
 			Log.d(TAG, "Added projects to json");
 			return jsonTL.toString();
@@ -198,10 +525,7 @@ public class TaskList extends ArrayList<Task> implements Serializable {
 			deletedTasks.unJsonify(jsonTL.getString("deletedTasks"));
 			Log.d(TAG, "Recreated deleted tasks from json");
 
-			JSONArray jsonProjects = new JSONArray(jsonTL.getString("projects"));
-			for (int i = 0; i< jsonProjects.length(); i++)
-				this.projects.add(jsonProjects.getString(i));
-			Log.d(TAG, "Recreated projects from json");
+			// The projects are rebuilt from the tasks
 		} catch (JSONException e) {
 			Log.e(TAG, "Exception while unjsonifying");
 		}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2013-14 Nicolas Miller, Florian Paindorge
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package fr.syncarnet.tasks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * Reads a TaskList saved with an ObjectOutputStream, by this version or by
+ * the first ones. A class whose layout changed since then got a new
+ * serialVersionUID, the classes saved with the old one are read as the Old*
+ * classes below, with the same fields, which turn into the current ones once
+ * read.
+ */
+public class TaskListInputStream extends ObjectInputStream {
+
+	public TaskListInputStream(InputStream in) throws IOException {
+		super(in);
+	}
+
+	@Override
+	protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+		ObjectStreamClass desc = super.readClassDescriptor();
+		String name = desc.getName();
+		long uid = desc.getSerialVersionUID();
+		if(name.equals(TaskList.class.getName()) && uid == OldTaskList.serialVersionUID) {
+			return ObjectStreamClass.lookup(OldTaskList.class);
+		}
+		if(name.equals(Task.class.getName()) && uid == OldTask.serialVersionUID) {
+			return ObjectStreamClass.lookup(OldTask.class);
+		}
+		if(name.equals(DeletedTasks.class.getName()) && uid == OldDeletedTasks.serialVersionUID) {
+			return ObjectStreamClass.lookup(OldDeletedTasks.class);
+		}
+		return desc;
+	}
+
+	/**
+	 * The first TaskList, an ArrayList of the tasks.
+	 */
+	private static class OldTaskList extends ArrayList<Task> {
+		private static final long serialVersionUID = 420701038610861370L;
+		private DeletedTasks deletedTasks;
+		private ArrayList<String> projects;
+
+		private Object readResolve() {
+			return TaskList.migrate(this, deletedTasks);
+		}
+	}
+
+	/**
+	 * The first Task, with Calendars and its own DateFormat.
+	 */
+	private static class OldTask implements Serializable {
+		private static final long serialVersionUID = 1656257072057072129L;
+		private String description;
+		private String project;
+		private Priority priority;
+		private UUID uuid;
+		private Calendar due;
+		private long entry;
+		private long modified;
+		private DateFormat dateFormat;
+
+		private Object readResolve() {
+			return Task.restore(uuid, description, project, priority, due, entry, modified);
+		}
+	}
+
+	/**
+	 * The first DeletedTasks, an ArrayList of the UUIDs and their timestamps
+	 * in a HashMap.
+	 */
+	private static class OldDeletedTasks extends ArrayList<UUID> {
+		private static final long serialVersionUID = 2188246382130382763L;
+		private HashMap<UUID, Long> timestamps;
+
+		private Object readResolve() {
+			DeletedTasks dt = new DeletedTasks();
+			for(UUID uuid : this) {
+				Long timestamp = timestamps.get(uuid);
+				dt.add(uuid, timestamp != null ? timestamp.longValue() : 0);
+			}
+			return dt;
+		}
+	}
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2013-14 Nicolas Miller, Florian Paindorge
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package fr.syncarnet.tasks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.UUID;
+
+/**
+ * Merges a received task list into the local one while it is received.
+ *
+ * Each received task is compared with the local one as soon as it arrives,
+ * so once the last task is in, finish only has to walk the local list and
+ * insert the few received tasks which are new or have moved.
+ *
+ * Each field of a received task replaces the same field of the local one
+ * when it was changed by a later operation, so edits of different fields made
+ * on both sides are all kept. Local tasks deleted by the peer and received
+ * tasks deleted locally are dropped, and the result holds the tombstones of
+ * both sides. The changes taken from the peer are logged as local operations,
+ * so that they reach the next peers, unless the operation of the peer says
+ * all there is to know about the task. The local list is only read, it must
+ * not be modified until finish returns.
+ *
+ * What is merged so far can be committed while the list is received, so an
+ * interrupted sync keeps the tasks which came, the most urgent ones.
+ */
+public class TaskMerger {
+	private final TaskList local;
+	private final DeletedTasks localDeleted;
+	private final DeletedTasks receivedDeleted = new DeletedTasks();
+	private final DeletedTasks deleted;
+	// Local tasks with the more recent fields of the received versions
+	private final HashMap<UUID, Task> replaced = new HashMap<UUID, Task>();
+	// Received tasks unknown locally, in the order they came
+	private final LinkedHashMap<UUID, Task> added = new LinkedHashMap<UUID, Task>();
+	// Tombstones and tasks taken without an operation describing them
+	private final ArrayList<UUID> takenDeleted = new ArrayList<UUID>();
+	private final ArrayList<UUID> taken = new ArrayList<UUID>();
+	private final OperationLog log;
+	// Tombstones older than this are compacted away, see TombstoneCompactor
+	private final long horizon = TombstoneCompactor.horizon(new Date().getTime());
+	// Whether something changed since the last commit
+	private boolean changed = false;
+	private int received = 0;
+	private int batchSize;
+	private BatchListener batchListener;
+
+	/**
+	 * Told each time a batch of received tasks and tombstones is merged.
+	 */
+	public interface BatchListener {
+		public void onBatch(TaskMerger merger);
+	}
+
+	public TaskMerger(TaskList local) {
+		this.local = local;
+		this.localDeleted = local.getDeletedTasks();
+		this.deleted = new DeletedTasks(localDeleted);
+		this.log = new OperationLog(local.getLog());
+	}
+
+	/**
+	 * Calls the listener each time size more tasks and tombstones are
+	 * received, for instance to commit them.
+	 */
+	public void setBatchListener(int size, BatchListener listener) {
+		batchSize = size;
+		batchListener = listener;
+	}
+
+	/**
+	 * Whether something was merged since the last commit.
+	 */
+	public boolean hasChanges() {
+		return changed;
+	}
+
+	/**
+	 * Takes a tombstone of the peer, the local timestamp is kept if both
+	 * sides deleted the task. A tombstone received after the task, when a
+	 * snapshot is followed by what changed since, wins over it. One past the
+	 * horizon of a task this side does not have is not kept, it may have
+	 * been dropped here already.
+	 */
+	public void addDeleted(UUID uuid, long timestamp) {
+		if(replaced.remove(uuid) != null | added.remove(uuid) != null) {
+			taken.removeAll(Collections.singleton(uuid));
+		}
+		receivedDeleted.add(uuid, timestamp);
+		if(!localDeleted.contains(uuid) && (timestamp >= horizon || local.getTask(uuid) != null)) {
+			deleted.add(uuid, timestamp);
+			takenDeleted.add(uuid);
+		}
+		// Local tasks are dropped even when both sides deleted them
+		changed = true;
+		received();
+	}
+
+	public void addDeleted(DeletedTasks dt) {
+		for(UUID uuid : dt) {
+			addDeleted(uuid, dt.getTimestamp(uuid));
+		}
+	}
+
+	/**
+	 * Takes a task of the peer.
+	 */
+	public void add(Task t) {
+		UUID uuid = t.getUUID();
+		Task mine = local.getTask(uuid);
+		if(mine != null) {
+			int fields = mine.newerFields(t);
+			if(fields != 0) {
+				replaced.put(uuid, mine.withFields(t, fields));
+				taken.add(uuid);
+				changed = true;
+			}
+		} else if(!localDeleted.contains(uuid)) {
+			added.put(uuid, t);
+			taken.add(uuid);
+			changed = true;
+		}
+		received();
+	}
+
+	/**
+	 * Takes the deletion of a task by the peer. As with tombstones, a
+	 * deletion wins over the changes made on this side.
+	 */
+	public void addDeleted(UUID uuid, long timestamp, Operation op) {
+		replaced.remove(uuid);
+		added.remove(uuid);
+		receivedDeleted.add(uuid, timestamp);
+		if(!deleted.contains(uuid)) {
+			deleted.add(uuid, timestamp);
+		}
+		Operation mine = log.get(uuid);
+		if(mine == null || !mine.deleted || op.after(mine)) {
+			log.apply(op);
+		}
+		changed = true;
+		received();
+	}
+
+	/**
+	 * Takes a change of a task by the peer, along with the operation which
+	 * made it. The task only holds the fields this side has not seen.
+	 */
+	public void add(Task t, Operation op) {
+		received();
+		UUID uuid = t.getUUID();
+		if(deleted.contains(uuid)) {
+			return;
+		}
+		Task mine = local.getTask(uuid);
+		if(mine == null) {
+			// Unknown here, so it was sent in full
+			if(t.getFields() == Task.ALL_FIELDS) {
+				added.put(uuid, t);
+				log.apply(op);
+				changed = true;
+			}
+			return;
+		}
+		int fields = mine.newerFields(t);
+		if(fields == 0) {
+			return;
+		}
+		replaced.put(uuid, mine.withFields(t, fields));
+		changed = true;
+		if(fields == Task.ALL_FIELDS) {
+			log.apply(op);
+		} else {
+			// A mix of both sides, which neither operation describes
+			taken.add(uuid);
+		}
+	}
+
+	/**
+	 * Marks the operations seen by the peer as seen, once everything it sent
+	 * is taken.
+	 */
+	public void addSeen(VersionVector seen, long clock) {
+		log.merge(seen, clock);
+	}
+
+	/**
+	 * Feeds a received list to the merger as it is decoded.
+	 */
+	public void read(WireCodec.Reader reader) throws IOException {
+		addDeleted(reader.getDeletedTasks());
+		while(reader.hasNext()) {
+			add(reader.next());
+		}
+	}
+
+	private void received() {
+		received++;
+		if(batchListener != null && received % batchSize == 0) {
+			batchListener.onBatch(this);
+		}
+	}
+
+	/**
+	 * Builds the merged list once everything is received.
+	 */
+	public TaskList finish() {
+		return commit();
+	}
+
+	/**
+	 * Builds the list merged so far. It may be called several times while
+	 * the list is received, each list holding what the previous one held
+	 * and what was received since.
+	 */
+	public TaskList commit() {
+		Task.CompareWithDueAndPriority order = new Task.CompareWithDueAndPriority();
+		// The local tasks stay sorted, received ones which sort differently
+		// are sorted apart then both sequences are merged
+		ArrayList<Task> kept = new ArrayList<Task>(local.size());
+		ArrayList<Task> moved = new ArrayList<Task>(added.size() + replaced.size());
+		for(Task mine : local) {
+			if(receivedDeleted.contains(mine.getUUID())) {
+				continue;
+			}
+			Task t = replaced.get(mine.getUUID());
+			if(t == null) {
+				kept.add(mine);
+			} else if(order.compare(t, mine) == 0) {
+				kept.add(t);
+			} else {
+				moved.add(t);
+			}
+		}
+		moved.addAll(added.values());
+		Collections.sort(moved, order);
+
+		// Among equal tasks, local ones stay before received ones
+		ArrayList<Task> merged = new ArrayList<Task>(kept.size() + moved.size());
+		int i = 0;
+		int j = 0;
+		while(i < kept.size() && j < moved.size()) {
+			if(order.compare(moved.get(j), kept.get(i)) < 0) {
+				merged.add(moved.get(j++));
+			} else {
+				merged.add(kept.get(i++));
+			}
+		}
+		merged.addAll(kept.subList(i, kept.size()));
+		merged.addAll(moved.subList(j, moved.size()));
+
+		// The merge may go on, the committed list gets its own copies
+		TaskList tf = new TaskList();
+		tf.addAllSorted(merged);
+		tf.setDeletedTasks(new DeletedTasks(deleted));
+		// Only recorded once, by the commit which first holds them
+		for(UUID uuid : takenDeleted) {
+			log.record(uuid, true);
+		}
+		for(UUID uuid : taken) {
+			log.record(uuid, false);
+		}
+		takenDeleted.clear();
+		taken.clear();
+		changed = false;
+		tf.setLog(new OperationLog(log));
+		return tf;
+	}
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2014 Nicolas Miller, Florian Paindorge
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package fr.syncarnet.tasks;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Balanced (AVL) search tree of tasks ordered by their slot. Each node knows
+ * the size of its subtree so positional access, insertion and removal are all
+ * logarithmic.
+ */
+class TaskTree {
+	private static class Node {
+		Slot slot;
+		Task task;
+		Node left;
+		Node right;
+		int height = 1;
+		int size = 1;
+
+		Node(Slot slot, Task task) {
+			this.slot = slot;
+			this.task = task;
+		}
+	}
+
+	private Node root;
+	private int modCount = 0;
+
+	public int size() {
+		return size(root);
+	}
+
+	public void clear() {
+		root = null;
+		modCount++;
+	}
+
+	/**
+	 * Returns the task at the given position in the order of the slots.
+	 */
+	public Task get(int position) {
+		return node(position).task;
+	}
+
+	/**
+	 * Returns the position of the given slot, or -1 if it is not in the tree.
+	 */
+	public int indexOf(Slot slot) {
+		Node n = root;
+		int before = 0;
+		while(n != null) {
+			int c = slot.compareTo(n.slot);
+			if(c < 0) {
+				n = n.left;
+			} else if(c > 0) {
+				before += size(n.left) + 1;
+				n = n.right;
+			} else {
+				return before + size(n.left);
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the task of the given slot, or null if it is not in the tree.
+	 */
+	public Task get(Slot slot) {
+		Node n = root;
+		while(n != null) {
+			int c = slot.compareTo(n.slot);
+			if(c == 0) {
+				return n.task;
+			}
+			n = c < 0 ? n.left : n.right;
+		}
+		return null;
+	}
+
+	public void insert(Slot slot, Task task) {
+		root = insert(root, slot, task);
+		modCount++;
+	}
+
+	public void remove(Slot slot) {
+		root = remove(root, slot);
+		modCount++;
+	}
+
+	/**
+	 * Replaces the content of the tree with tasks already sorted by slot,
+	 * in linear time.
+	 */
+	public void build(ArrayList<Slot> slots, ArrayList<Task> tasks) {
+		root = build(slots, tasks, 0, tasks.size());
+		modCount++;
+	}
+
+	/**
+	 * In order traversal, each step is constant time on average.
+	 */
+	public Iterator<Task> iterator() {
+		return new Iterator<Task>() {
+			private final ArrayList<Node> stack = new ArrayList<Node>();
+			private final int expectedModCount = modCount;
+			{
+				pushLeft(root);
+			}
+
+			public boolean hasNext() {
+				return !stack.isEmpty();
+			}
+
+			public Task next() {
+				if(modCount != expectedModCount) {
+					throw new ConcurrentModificationException();
+				}
+				if(stack.isEmpty()) {
+					throw new NoSuchElementException();
+				}
+				Node n = stack.remove(stack.size() - 1);
+				pushLeft(n.right);
+				return n.task;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			private void pushLeft(Node n) {
+				while(n != null) {
+					stack.add(n);
+					n = n.left;
+				}
+			}
+		};
+	}
+
+	private Node node(int position) {
+		if(position < 0 || position >= size()) {
+			throw new IndexOutOfBoundsException("Index: " + position + ", Size: " + size());
+		}
+		Node n = root;
+		while(true) {
+			int left = size(n.left);
+			if(position < left) {
+				n = n.left;
+			} else if(position > left) {
+				position -= left + 1;
+				n = n.right;
+			} else {
+				return n;
+			}
+		}
+	}
+
+	private static Node insert(Node n, Slot slot, Task task) {
+		if(n == null) {
+			return new Node(slot, task);
+		}
+		int c = slot.compareTo(n.slot);
+		if(c < 0) {
+			n.left = insert(n.left, slot, task);
+		} else if(c > 0) {
+			n.right = insert(n.right, slot, task);
+		} else {
+			n.task = task;
+		}
+		return balance(n);
+	}
+
+	private static Node remove(Node n, Slot slot) {
+		if(n == null) {
+			return null;
+		}
+		int c = slot.compareTo(n.slot);
+		if(c < 0) {
+			n.left = remove(n.left, slot);
+		} else if(c > 0) {
+			n.right = remove(n.right, slot);
+		} else {
+			if(n.left == null) {
+				return n.right;
+			}
+			if(n.right == null) {
+				return n.left;
+			}
+			Node next = n.right;
+			while(next.left != null) {
+				next = next.left;
+			}
+			n.right = remove(n.right, next.slot);
+			n.slot = next.slot;
+			n.task = next.task;
+		}
+		return balance(n);
+	}
+
+	private static Node build(ArrayList<Slot> slots, ArrayList<Task> tasks, int from, int to) {
+		if(from >= to) {
+			return null;
+		}
+		int mid = (from + to) >>> 1;
+		Node n = new Node(slots.get(mid), tasks.get(mid));
+		n.left = build(slots, tasks, from, mid);
+		n.right = build(slots, tasks, mid + 1, to);
+		update(n);
+		return n;
+	}
+
+	private static int size(Node n) {
+		return n == null ? 0 : n.size;
+	}
+
+	private static int height(Node n) {
+		return n == null ? 0 : n.height;
+	}
+
+	private static void update(Node n) {
+		n.height = Math.max(height(n.left), height(n.right)) + 1;
+		n.size = size(n.left) + size(n.right) + 1;
+	}
+
+	private static Node balance(Node n) {
+		update(n);
+		int b = height(n.left) - height(n.right);
+		if(b > 1) {
+			if(height(n.left.left) < height(n.left.right)) {
+				n.left = rotateLeft(n.left);
+			}
+			return rotateRight(n);
+		} else if(b < -1) {
+			if(height(n.right.right) < height(n.right.left)) {
+				n.right = rotateRight(n.right);
+			}
+			return rotateLeft(n);
+		}
+		return n;
+	}
+
+	private static Node rotateRight(Node n) {
+		Node l = n.left;
+		n.left = l.right;
+		l.right = n;
+		update(n);
+		update(l);
+		return l;
+	}
+
+	private static Node rotateLeft(Node n) {
+		Node r = n.right;
+		n.right = r.left;
+		r.left = n;
+		update(n);
+		update(r);
+		return r;
+	}
+}
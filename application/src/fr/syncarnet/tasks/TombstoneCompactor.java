@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2014 Nicolas Miller, Florian Paindorge
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package fr.syncarnet.tasks;
+
+/**
+ * Drops the tombstones every known peer has already received. A tombstone
+ * added here before the oldest synchronization with a peer has been sent to
+ * all of them, it is only kept for an extra grace period in case a peer
+ * restores an old list. The local date of addition is used rather than the
+ * deletion timestamp, so that an old deletion received late still reaches
+ * the other peers.
+ */
+public class TombstoneCompactor {
+	/** One week */
+	public static final long DEFAULT_GRACE = 7L * 24 * 60 * 60 * 1000;
+	private static final long DAY = 24L * 60 * 60 * 1000;
+
+	private final long grace;
+
+	public TombstoneCompactor() {
+		this(DEFAULT_GRACE);
+	}
+
+	/**
+	 * Returns the date before which a peer may have dropped tombstones: the
+	 * start of the day (UTC) after now - DEFAULT_GRACE. Peers leave the older
+	 * tombstones out when they compare their lists, since each one compacts
+	 * against its own peers. Rounded to the day so that their clocks agree.
+	 */
+	public static long horizon(long now) {
+		return ((now - DEFAULT_GRACE) / DAY + 1) * DAY;
+	}
+
+	/**
+	 * @param grace
+	 * 	How long a tombstone is kept after every peer got it, in milliseconds
+	 */
+	public TombstoneCompactor(long grace) {
+		this.grace = grace;
+	}
+
+	/**
+	 * Removes the tombstones of the given list added before watermark - grace.
+	 * @param watermark
+	 * 	Timestamp of the oldest synchronization with a known peer, nothing is
+	 * 	removed if it is 0 (no peer known)
+	 * @return
+	 * 	The number of removed tombstones
+	 */
+	public int compact(TaskList tl, long watermark) {
+		if(watermark <= 0) {
+			return 0;
+		}
+		DeletedTasks dt = tl.getDeletedTasks();
+		int before = dt.size();
+		dt.clearAddedBefore(watermark - grace);
+		tl.forgetDeleted();
+		return before - dt.size();
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2013-14 Nicolas Miller, Florian Paindorge
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package fr.syncarnet.tasks;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * For each device, the number of the last of its operations which has been
+ * seen. The operations of a device are seen in order, so anything numbered
+ * up to that is known.
+ */
+public class VersionVector implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final HashMap<Long, Long> seqs = new HashMap<Long, Long>();
+
+	public VersionVector() {
+	}
+
+	public VersionVector(VersionVector v) {
+		seqs.putAll(v.seqs);
+	}
+
+	/**
+	 * Returns the last operation seen from a device, 0 if none.
+	 */
+	public long get(long device) {
+		Long seq = seqs.get(device);
+		return seq != null ? seq : 0;
+	}
+
+	/**
+	 * Marks the operations of a device up to seq as seen.
+	 */
+	public void advance(long device, long seq) {
+		if(seq > get(device)) {
+			seqs.put(device, seq);
+		}
+	}
+
+	/**
+	 * Marks everything seen by another vector as seen.
+	 */
+	public void merge(VersionVector v) {
+		for(Map.Entry<Long, Long> e : v.seqs.entrySet()) {
+			advance(e.getKey(), e.getValue());
+		}
+	}
+
+	public Set<Long> devices() {
+		return seqs.keySet();
+	}
+
+	public int size() {
+		return seqs.size();
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof VersionVector && seqs.equals(((VersionVector)o).seqs);
+	}
+
+	@Override
+	public int hashCode() {
+		return seqs.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return seqs.toString();
+	}
+}
@@ -0,0 +1,543 @@
+/*
+ * Copyright (C) 2013-14 Nicolas Miller, Florian Paindorge
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package fr.syncarnet.tasks;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+
+/**
+ * Binary format of the task lists exchanged during a synchronization.
+ *
+ * A list is a version byte, the tombstones then the tasks, the most urgent
+ * first (see Task.CompareWithUrgency) so that an interrupted transfer still
+ * brings the tasks which matter soon. UUIDs are 16 raw
+ * bytes, numbers are unsigned LEB128 varints (zigzag encoded when they can
+ * be negative) and strings are UTF-8 bytes preceded by their length.
+ * Tombstones are sent by increasing timestamp as deltas from the previous
+ * one. A project is sent once, the next tasks of the same project refer to
+ * it by its index in a table built while reading.
+ *
+ * A task only holds the fields given by a mask, each of them followed by the
+ * operation which last changed it. Fields changed by the same operation share
+ * it. Operations are sent the same way, each tombstone and task being
+ * followed by its last operation. Devices are referred to like projects and
+ * clocks are sent as deltas from the entry date of the task, or the deletion
+ * date of the tombstone.
+ */
+public final class WireCodec {
+	public static final int VERSION = 2;
+	/** First byte of a list of operations */
+	public static final int OPERATIONS = 3;
+	/** Longest description or project, in UTF-8 bytes */
+	public static final int MAX_STRING = 16 << 10;
+
+	private static final Priority[] PRIORITIES = Priority.values();
+	private static final int PRIORITY_MASK = 0x03;
+	private static final int HAS_DUE = 0x04;
+	private static final int HAS_MODIFIED = 0x08;
+	// The mask of the fields sent takes the high bits of the flags
+	private static final int FIELDS_SHIFT = 4;
+
+	private WireCodec() {
+	}
+
+	/**
+	 * Encodes a whole task list.
+	 */
+	public static byte[] encode(TaskList tl) throws IOException {
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		write(b, tl);
+		return b.toByteArray();
+	}
+
+	public static TaskList decode(byte[] bytes) throws IOException {
+		return read(new ByteArrayInputStream(bytes));
+	}
+
+	/**
+	 * Writes a task list to a stream, the stream is flushed but not closed.
+	 */
+	public static void write(OutputStream os, TaskList tl) throws IOException {
+		OutputStream out = new BufferedOutputStream(os);
+		out.write(VERSION);
+		writeDeletedTasks(out, tl.getDeletedTasks());
+		HashMap<String, Integer> projects = new HashMap<String, Integer>();
+		HashMap<Long, Integer> devices = new HashMap<Long, Integer>();
+		ArrayList<Task> tasks = new ArrayList<Task>(tl.size());
+		for(Task t : tl) {
+			tasks.add(t);
+		}
+		Collections.sort(tasks, new Task.CompareWithUrgency());
+		writeVarLong(out, tasks.size());
+		for(Task t : tasks) {
+			writeTask(out, t, projects, devices);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Reads a task list written by write. Nothing is read past its end, so
+	 * the stream should be buffered by the caller.
+	 */
+	public static TaskList read(InputStream in) throws IOException {
+		Reader reader = new Reader(in);
+		TaskList tl = new TaskList();
+		tl.setDeletedTasks(reader.getDeletedTasks());
+		ArrayList<Task> tasks = new ArrayList<Task>(Math.min(reader.remaining(), 1024));
+		while(reader.hasNext()) {
+			tasks.add(reader.next());
+		}
+		// A few sorted runs when the peer is well behaved, which the sort
+		// merges in linear time
+		Collections.sort(tasks, new Task.CompareWithDueAndPriority());
+		tl.addAllSorted(tasks);
+		return tl;
+	}
+
+	/**
+	 * Reads a task list one task at a time, so that it can be processed
+	 * while it is received. The tombstones come first and are read when the
+	 * reader is built.
+	 */
+	public static class Reader {
+		private final InputStream in;
+		private final ArrayList<String> projects = new ArrayList<String>();
+		private final ArrayList<Long> devices = new ArrayList<Long>();
+		private final DeletedTasks deletedTasks;
+		private int remaining;
+
+		public Reader(InputStream in) throws IOException {
+			this.in = in;
+			int version = in.read();
+			if(version != VERSION) {
+				throw new IOException("Unsupported task list format " + version);
+			}
+			deletedTasks = readDeletedTasks(in);
+			remaining = readSize(in);
+		}
+
+		public DeletedTasks getDeletedTasks() {
+			return deletedTasks;
+		}
+
+		/**
+		 * Number of tasks not read yet.
+		 */
+		public int remaining() {
+			return remaining;
+		}
+
+		public boolean hasNext() {
+			return remaining > 0;
+		}
+
+		public Task next() throws IOException {
+			if(remaining == 0) {
+				throw new NoSuchElementException();
+			}
+			remaining--;
+			return readTask(in, projects, devices);
+		}
+	}
+
+	/**
+	 * Writes the tasks and tombstones of a list with their last operation,
+	 * those without one are left out. The stream is flushed but not closed.
+	 */
+	public static void writeOperations(OutputStream os, TaskList tl) throws IOException {
+		OutputStream out = new BufferedOutputStream(os);
+		OperationLog log = tl.getLog();
+		HashMap<Long, Integer> devices = new HashMap<Long, Integer>();
+		out.write(OPERATIONS);
+
+		DeletedTasks dt = tl.getDeletedTasks();
+		ArrayList<Operation> deletions = new ArrayList<Operation>(dt.size());
+		for(UUID uuid : oldestFirst(dt)) {
+			Operation op = log.get(uuid);
+			if(op != null && op.deleted) {
+				deletions.add(op);
+			}
+		}
+		writeVarLong(out, deletions.size());
+		long last = 0;
+		for(Operation op : deletions) {
+			long timestamp = dt.getTimestamp(op.uuid);
+			writeUUID(out, op.uuid);
+			writeVarLong(out, zigzag(timestamp - last));
+			writeOperation(out, op, timestamp, devices);
+			last = timestamp;
+		}
+
+		ArrayList<Task> tasks = new ArrayList<Task>(tl.size());
+		for(Task t : tl) {
+			Operation op = log.get(t.getUUID());
+			if(op != null && !op.deleted) {
+				tasks.add(t);
+			}
+		}
+		Collections.sort(tasks, new Task.CompareWithUrgency());
+		HashMap<String, Integer> projects = new HashMap<String, Integer>();
+		writeVarLong(out, tasks.size());
+		for(Task t : tasks) {
+			writeTask(out, t, projects, devices);
+			writeOperation(out, log.get(t.getUUID()), t.getEntry(), devices);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Reads operations written by writeOperations and gives them to the
+	 * merger. Nothing is read past their end.
+	 */
+	public static void readOperations(InputStream in, TaskMerger merger) throws IOException {
+		int version = in.read();
+		if(version != OPERATIONS) {
+			throw new IOException("Unsupported operations format " + version);
+		}
+		ArrayList<Long> devices = new ArrayList<Long>();
+		int size = readSize(in);
+		long last = 0;
+		for(int i = 0; i < size; i++) {
+			UUID uuid = readUUID(in);
+			last += unzigzag(readVarLong(in));
+			merger.addDeleted(uuid, last, readOperation(in, uuid, true, last, devices));
+		}
+		ArrayList<String> projects = new ArrayList<String>();
+		size = readSize(in);
+		for(int i = 0; i < size; i++) {
+			Task t = readTask(in, projects, devices);
+			merger.add(t, readOperation(in, t.getUUID(), false, t.getEntry(), devices));
+		}
+	}
+
+	private static void writeOperation(OutputStream out, Operation op, long base, HashMap<Long, Integer> devices) throws IOException {
+		// Same scheme as the projects, with the 8 bytes of a new device
+		Integer index = devices.get(op.device);
+		if(index != null) {
+			writeVarLong(out, index + 1);
+		} else {
+			devices.put(op.device, devices.size());
+			writeVarLong(out, devices.size());
+			writeLong(out, op.device);
+		}
+		writeVarLong(out, op.seq);
+		writeVarLong(out, zigzag(op.clock - base));
+	}
+
+	private static Operation readOperation(InputStream in, UUID uuid, boolean deleted, long base, ArrayList<Long> devices) throws IOException {
+		long index = readVarLong(in);
+		long device;
+		if(index == devices.size() + 1) {
+			byte[] b = new byte[8];
+			readFully(in, b);
+			device = toLong(b, 0);
+			devices.add(device);
+		} else if(index > 0 && index <= devices.size()) {
+			device = devices.get((int)index - 1);
+		} else {
+			throw new IOException("Invalid device index " + index);
+		}
+		long seq = readVarLong(in);
+		long clock = base + unzigzag(readVarLong(in));
+		return new Operation(device, seq, clock, uuid, deleted);
+	}
+
+	/**
+	 * Writes the tombstones, oldest first.
+	 */
+	public static void writeDeletedTasks(OutputStream out, DeletedTasks dt) throws IOException {
+		writeVarLong(out, dt.size());
+		long last = 0;
+		for(UUID uuid : oldestFirst(dt)) {
+			long timestamp = dt.getTimestamp(uuid);
+			writeUUID(out, uuid);
+			writeVarLong(out, zigzag(timestamp - last));
+			last = timestamp;
+		}
+	}
+
+	/**
+	 * Returns the tombstones sorted by timestamp, so that the differences
+	 * between timestamps are small.
+	 */
+	private static ArrayList<UUID> oldestFirst(final DeletedTasks dt) {
+		ArrayList<UUID> uuids = new ArrayList<UUID>(dt);
+		Collections.sort(uuids, new Comparator<UUID>() {
+			public int compare(UUID u1, UUID u2) {
+				long t1 = dt.getTimestamp(u1);
+				long t2 = dt.getTimestamp(u2);
+				return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+			}
+		});
+		return uuids;
+	}
+
+	public static DeletedTasks readDeletedTasks(InputStream in) throws IOException {
+		DeletedTasks dt = new DeletedTasks();
+		int size = readSize(in);
+		long last = 0;
+		for(int i = 0; i < size; i++) {
+			UUID uuid = readUUID(in);
+			last += unzigzag(readVarLong(in));
+			dt.add(uuid, last);
+		}
+		return dt;
+	}
+
+	/**
+	 * Writes a task, projects and devices hold the indexes of the projects
+	 * and devices already sent.
+	 */
+	public static void writeTask(OutputStream out, Task t, HashMap<String, Integer> projects, HashMap<Long, Integer> devices) throws IOException {
+		writeUUID(out, t.getUUID());
+		int fields = t.getFields();
+		int flags = fields << FIELDS_SHIFT;
+		if((fields & Task.PRIORITY) != 0) {
+			flags |= t.getPriority().ordinal();
+		}
+		if((fields & Task.DUE) != 0 && t.getDueDay() != Task.NO_DUE) {
+			flags |= HAS_DUE;
+		}
+		if(t.getModified() != -1) {
+			flags |= HAS_MODIFIED;
+		}
+		out.write(flags);
+		if((fields & Task.DESCRIPTION) != 0) {
+			writeString(out, t.getDescription());
+		}
+		// 0 for no project, the index + 1 of a known one, or the size + 1 of
+		// the table followed by the name for a new one
+		String project = t.getProject();
+		if((fields & Task.PROJECT) == 0) {
+			// Not sent
+		} else if(project == null) {
+			writeVarLong(out, 0);
+		} else {
+			Integer index = projects.get(project);
+			if(index != null) {
+				writeVarLong(out, index + 1);
+			} else {
+				projects.put(project, projects.size());
+				writeVarLong(out, projects.size());
+				writeString(out, project);
+			}
+		}
+		if((flags & HAS_DUE) != 0) {
+			writeVarLong(out, zigzag(t.getDueDay()));
+		}
+		writeVarLong(out, zigzag(t.getEntry()));
+		if((flags & HAS_MODIFIED) != 0) {
+			writeVarLong(out, zigzag(t.getModified() - t.getEntry()));
+		}
+
+		// The distinct operations which changed the fields, each preceded
+		// by the mask of the fields it changed
+		ArrayList<Operation> stamps = new ArrayList<Operation>(1);
+		int[] masks = new int[Task.FIELDS];
+		for(int field = 1; field <= Task.ALL_FIELDS; field <<= 1) {
+			Operation op = t.getStamp(field);
+			if(op == null) {
+				continue;
+			}
+			int i = stamps.indexOf(op);
+			if(i < 0) {
+				i = stamps.size();
+				stamps.add(op);
+			}
+			masks[i] |= field;
+		}
+		out.write(stamps.size());
+		for(int i = 0; i < stamps.size(); i++) {
+			out.write(masks[i]);
+			writeOperation(out, stamps.get(i), t.getEntry(), devices);
+		}
+	}
+
+	/**
+	 * Reads a task, projects and devices hold the projects and devices
+	 * already received. The fields which were not sent are left unset.
+	 */
+	public static Task readTask(InputStream in, ArrayList<String> projects, ArrayList<Long> devices) throws IOException {
+		UUID uuid = readUUID(in);
+		int flags = readByte(in);
+		int fields = flags >>> FIELDS_SHIFT;
+		int priority = flags & PRIORITY_MASK;
+		if(priority >= PRIORITIES.length) {
+			throw new IOException("Invalid priority " + priority);
+		}
+		if((fields & Task.PRIORITY) == 0) {
+			priority = Priority.MEDIUM.ordinal();
+		}
+		String description = null;
+		if((fields & Task.DESCRIPTION) != 0) {
+			description = readString(in);
+		}
+		String project = null;
+		long index = (fields & Task.PROJECT) != 0 ? readVarLong(in) : 0;
+		if(index == projects.size() + 1) {
+			project = readString(in);
+			projects.add(project);
+		} else if(index > 0 && index <= projects.size()) {
+			project = projects.get((int)index - 1);
+		} else if(index != 0) {
+			throw new IOException("Invalid project index " + index);
+		}
+		int due = Task.NO_DUE;
+		if((flags & HAS_DUE) != 0) {
+			due = (int)unzigzag(readVarLong(in));
+		}
+		long entry = unzigzag(readVarLong(in));
+		long modified = -1;
+		if((flags & HAS_MODIFIED) != 0) {
+			modified = entry + unzigzag(readVarLong(in));
+		}
+		Task t = new Task(uuid, description, project, (byte)priority, due, entry, modified);
+
+		int count = readByte(in);
+		if(count > Task.FIELDS) {
+			throw new IOException("Invalid number of stamps " + count);
+		}
+		for(int i = 0; i < count; i++) {
+			int mask = readByte(in);
+			if((mask & ~fields) != 0) {
+				throw new IOException("Stamp of a field not sent " + mask);
+			}
+			Operation op = readOperation(in, uuid, false, entry, devices);
+			for(int field = 1; field <= Task.ALL_FIELDS; field <<= 1) {
+				if((mask & field) != 0) {
+					t.setStamp(field, op);
+				}
+			}
+		}
+		return t;
+	}
+
+	/* Primitives */
+
+	static void writeVarLong(OutputStream out, long v) throws IOException {
+		while((v & ~0x7FL) != 0) {
+			out.write((int)(v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		out.write((int)v);
+	}
+
+	static long readVarLong(InputStream in) throws IOException {
+		long v = 0;
+		for(int shift = 0; shift < 64; shift += 7) {
+			int b = readByte(in);
+			v |= (long)(b & 0x7F) << shift;
+			if((b & 0x80) == 0) {
+				return v;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	static long zigzag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	static long unzigzag(long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	private static int readSize(InputStream in) throws IOException {
+		long size = readVarLong(in);
+		if(size < 0 || size > Integer.MAX_VALUE) {
+			throw new IOException("Invalid size " + size);
+		}
+		return (int)size;
+	}
+
+	private static int readByte(InputStream in) throws IOException {
+		int b = in.read();
+		if(b < 0) {
+			throw new EOFException();
+		}
+		return b;
+	}
+
+	private static void readFully(InputStream in, byte[] b) throws IOException {
+		int n = 0;
+		while(n < b.length) {
+			int read = in.read(b, n, b.length - n);
+			if(read < 0) {
+				throw new EOFException();
+			}
+			n += read;
+		}
+	}
+
+	private static void writeUUID(OutputStream out, UUID uuid) throws IOException {
+		writeLong(out, uuid.getMostSignificantBits());
+		writeLong(out, uuid.getLeastSignificantBits());
+	}
+
+	private static UUID readUUID(InputStream in) throws IOException {
+		byte[] b = new byte[16];
+		readFully(in, b);
+		return new UUID(toLong(b, 0), toLong(b, 8));
+	}
+
+	private static void writeLong(OutputStream out, long v) throws IOException {
+		for(int shift = 56; shift >= 0; shift -= 8) {
+			out.write((int)(v >>> shift));
+		}
+	}
+
+	private static long toLong(byte[] b, int offset) {
+		long v = 0;
+		for(int i = offset; i < offset + 8; i++) {
+			v = (v << 8) | (b[i] & 0xFF);
+		}
+		return v;
+	}
+
+	private static void writeString(OutputStream out, String s) throws IOException {
+		byte[] b = s.getBytes("UTF-8");
+		if(b.length > MAX_STRING) {
+			// The peer would refuse it
+			throw new IOException("String of " + b.length + " bytes is too long to be sent");
+		}
+		writeVarLong(out, b.length);
+		out.write(b);
+	}
+
+	private static String readString(InputStream in) throws IOException {
+		int length = readSize(in);
+		// Checked before allocating, the length comes from the peer
+		if(length > MAX_STRING) {
+			throw new IOException("String of " + length + " bytes is too long");
+		}
+		byte[] b = new byte[length];
+		readFully(in, b);
+		return new String(b, "UTF-8");
+	}
+}
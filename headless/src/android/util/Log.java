@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2014 Nicolas Miller, Florian Paindorge
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package android.util;
+
+/**
+ * Stands for the Android logger when the sync code runs on a plain JVM.
+ * Errors go to the standard error, the rest only with -Dsyncarnet.debug.
+ */
+public final class Log {
+	private static final boolean DEBUG = Boolean.getBoolean("syncarnet.debug");
+
+	private Log() {
+	}
+
+	public static int d(String tag, String msg) {
+		return d(tag, msg, null);
+	}
+
+	public static int d(String tag, String msg, Throwable tr) {
+		return DEBUG ? print("D", tag, msg, tr) : 0;
+	}
+
+	public static int i(String tag, String msg) {
+		return DEBUG ? print("I", tag, msg, null) : 0;
+	}
+
+	public static int w(String tag, String msg) {
+		return print("W", tag, msg, null);
+	}
+
+	public static int w(String tag, String msg, Throwable tr) {
+		return print("W", tag, msg, tr);
+	}
+
+	public static int e(String tag, String msg) {
+		return print("E", tag, msg, null);
+	}
+
+	public static int e(String tag, String msg, Throwable tr) {
+		return print("E", tag, msg, tr);
+	}
+
+	private static int print(String level, String tag, String msg, Throwable tr) {
+		System.err.println(level + "/" + tag + ": " + msg);
+		if (tr != null) {
+			tr.printStackTrace();
+		}
+		return 0;
+	}
+}
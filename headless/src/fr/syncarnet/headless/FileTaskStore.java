@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2014 Nicolas Miller, Florian Paindorge
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package fr.syncarnet.headless;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import fr.syncarnet.sync.Snapshot;
+import fr.syncarnet.sync.SyncServer;
+import fr.syncarnet.tasks.*;
+
+/**
+ * The task list of a headless peer, saved in a file the way the app saves
+ * its own, so the file of a phone can be copied here and back. A snapshot
+ * in the wire format is saved next to it, for new peers.
+ */
+public class FileTaskStore implements SyncServer.TaskStore {
+	private final File file;
+	private final File snapshotFile;
+	private TaskList tasks;
+	private Snapshot snapshot;
+	private int merges = 0;
+
+	/**
+	 * Reads the file, the list is empty if it does not exist yet.
+	 */
+	public FileTaskStore(File file) throws IOException {
+		this.file = file;
+		this.snapshotFile = new File(file.getPath() + ".wire");
+		if (file.exists()) {
+			ObjectInputStream is = new TaskListInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				tasks = (TaskList) is.readObject();
+			} catch (ClassNotFoundException e) {
+				throw new IOException("Not a task list: " + file);
+			} finally {
+				is.close();
+			}
+			snapshot = Snapshot.open(snapshotFile, tasks);
+		} else {
+			tasks = new TaskList();
+		}
+	}
+
+	/**
+	 * Returns the list itself, which is replaced rather than changed.
+	 */
+	public synchronized TaskList getTasks() {
+		return tasks;
+	}
+
+	public synchronized Snapshot getSnapshot() {
+		return snapshot;
+	}
+
+	public synchronized void setTasks(TaskList tasks) {
+		this.tasks = tasks;
+	}
+
+	/**
+	 * Returns how many merges were taken since the store was opened.
+	 */
+	public synchronized int getMerges() {
+		return merges;
+	}
+
+	/**
+	 * Writes the list to a temporary file first, so a crash never leaves a
+	 * truncated list behind.
+	 */
+	public synchronized void save() throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		ObjectOutputStream os = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			os.writeObject(tasks);
+		} finally {
+			os.close();
+		}
+		if (!tmp.renameTo(file)) {
+			throw new IOException("Could not replace " + file);
+		}
+		Snapshot old = snapshot;
+		snapshot = Snapshot.write(snapshotFile, tasks);
+		if (old != null) {
+			old.close();
+		}
+	}
+
+	public void onMerged(TaskList merged, boolean complete) {
+		synchronized (this) {
+			tasks = merged;
+			merges++;
+		}
+		try {
+			save();
+		} catch (IOException e) {
+			System.err.println("Could not save " + file + ": " + e.getMessage());
+		}
+	}
+
+	public void onInSync() {
+	}
+
+	public void onFailed(IOException e) {
+		System.err.println("Sync failed: " + e.getMessage());
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2014 Nicolas Miller, Florian Paindorge
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package fr.syncarnet.headless;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Calendar;
+
+import fr.syncarnet.sync.*;
+import fr.syncarnet.tasks.*;
+
+/**
+ * A peer without a phone: it keeps its tasks in a file and syncs them over
+ * TCP with the Wi-Fi protocol, either as a group owner other peers connect
+ * to or as a member connecting to one. Usage:
+ *
+ *   HeadlessPeer <file> serve [port [members]]
+ *   HeadlessPeer <file> sync <host> [port [times]]
+ *   HeadlessPeer <file> add <count> [project]
+ *   HeadlessPeer <file> show
+ */
+public class HeadlessPeer {
+	private HeadlessPeer() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			usage();
+			return;
+		}
+		FileTaskStore store = new FileTaskStore(new File(args[0]));
+		String command = args[1];
+		if ("serve".equals(command)) {
+			serve(store, intArg(args, 2, SyncServer.PORT), intArg(args, 3, 0));
+		} else if ("sync".equals(command) && args.length > 2) {
+			sync(store, args[2], intArg(args, 3, SyncServer.PORT), intArg(args, 4, 1));
+		} else if ("add".equals(command) && args.length > 2) {
+			add(store, Integer.parseInt(args[2]), args.length > 3 ? args[3] : null);
+		} else if ("show".equals(command)) {
+			show(store.getTasks());
+		} else {
+			usage();
+		}
+	}
+
+	/**
+	 * Acts as a group owner until the process is stopped.
+	 */
+	private static void serve(final FileTaskStore store, int port, int members) throws IOException, InterruptedException {
+		final SyncServer server = new SyncServer(store, port);
+		server.setGroupSize(members);
+		server.start();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				server.stop();
+				System.out.println("Took " + store.getMerges() + " merges, " + store.getTasks().size() + " tasks");
+			}
+		});
+		System.out.println("Serving " + store.getTasks().size() + " tasks on port " + server.getPort());
+		while (server.isRunning()) {
+			Thread.sleep(1000);
+		}
+	}
+
+	/**
+	 * Syncs with a group owner, several times to measure the throughput.
+	 */
+	private static void sync(FileTaskStore store, String host, int port, int times) throws IOException {
+		TcpTransport transport = new TcpTransport(host, port);
+		for (int i = 0; i < times; i++) {
+			long start = System.nanoTime();
+			TaskList local = store.getTasks();
+			TaskMerger merger = new TaskMerger(local);
+			SyncSession session = transport.connect();
+			TaskList merged;
+			try {
+				merged = SyncExchange.run(session, local, merger, SyncProtocol.WIFI_SPEED, store.getSnapshot());
+			} catch (IOException e) {
+				// Keeps what came before the failure
+				if (merger.hasChanges()) {
+					store.setTasks(merger.commit());
+					store.save();
+				}
+				throw e;
+			} finally {
+				session.close();
+			}
+			long ms = (System.nanoTime() - start) / 1000000;
+			if (merged == null) {
+				System.out.println("Already in sync (" + ms + " ms)");
+			} else {
+				store.setTasks(merged);
+				store.save();
+				System.out.println("Synced " + local.size() + " -> " + merged.size() + " tasks in " + ms + " ms");
+			}
+		}
+	}
+
+	/**
+	 * Adds generated tasks, due over the next month, to drive sync load.
+	 */
+	private static void add(FileTaskStore store, int count, String project) throws IOException {
+		TaskList tl = new TaskList(store.getTasks());
+		Priority[] priorities = Priority.values();
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < count; i++) {
+			Calendar due = null;
+			if (i % 3 != 0) {
+				due = Calendar.getInstance();
+				due.setTimeInMillis(now + (i % 30) * 24L * 60 * 60 * 1000);
+			}
+			tl.add(new Task("Task " + now + "-" + i, due, project, priorities[i % priorities.length]));
+		}
+		store.setTasks(tl);
+		store.save();
+		show(tl);
+	}
+
+	private static void show(TaskList tl) {
+		// The digest tells the sizes of the list
+		System.out.println(tl.digest());
+	}
+
+	private static int intArg(String[] args, int i, int value) {
+		return args.length > i ? Integer.parseInt(args[i]) : value;
+	}
+
+	private static void usage() {
+		System.err.println("Usage: HeadlessPeer <file> serve [port [members]]");
+		System.err.println("       HeadlessPeer <file> sync <host> [port [times]]");
+		System.err.println("       HeadlessPeer <file> add <count> [project]");
+		System.err.println("       HeadlessPeer <file> show");
+	}
+}
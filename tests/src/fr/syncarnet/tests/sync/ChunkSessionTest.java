@@ -0,0 +1,332 @@
+package fr.syncarnet.tests.sync;
+
+
+import fr.syncarnet.sync.*;
+import fr.syncarnet.tasks.*;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ChunkSessionTest {
+	private static final long TIMEOUT = 30000;
+
+	private LoopbackTransport transport;
+	private volatile ChunkSession a;
+	private volatile ChunkSession b;
+	private Faulty faulty;
+	private volatile int resumes;
+	private volatile Exception resumeFailure;
+
+	/**
+	 * Breaks the data frames written through it, a frame being flushed in
+	 * one write. The fields give the number of the frame to break.
+	 */
+	private static class Faulty extends FilterOutputStream {
+		private final SyncSession session;
+		int corrupt = -1;
+		int drop = -1;
+		int duplicate = -1;
+		int cut = -1;
+		volatile int frames = 0;
+
+		Faulty(SyncSession session) throws IOException {
+			super(session.getOutputStream());
+			this.session = session;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			// Control frames are 5 bytes long, the handshake 12
+			if (len <= 13 || b[off] != 1) {
+				out.write(b, off, len);
+				return;
+			}
+			int n = frames++;
+			if (n == cut) {
+				session.close();
+				throw new IOException("Cut");
+			}
+			if (n == drop) {
+				return;
+			}
+			if (n == corrupt) {
+				byte[] copy = Arrays.copyOfRange(b, off, off + len);
+				copy[len - 1] ^= 1;
+				out.write(copy, 0, len);
+				return;
+			}
+			out.write(b, off, len);
+			if (n == duplicate) {
+				out.write(b, off, len);
+			}
+		}
+	}
+
+	private final ChunkSession.Listener listener = new ChunkSession.Listener() {
+		public void onSuspended(ChunkSession session) {
+			synchronized (ChunkSessionTest.this) {
+				if (resumes > 0) {
+					return;
+				}
+				resumes++;
+			}
+			new Thread() {
+				public void run() {
+					try {
+						pair(null);
+					} catch (Exception e) {
+						resumeFailure = e;
+					}
+				}
+			}.start();
+		}
+	};
+
+	@Before
+	public void setUp() throws Exception {
+		transport = new LoopbackTransport();
+		a = null;
+		b = null;
+		resumes = 0;
+		resumeFailure = null;
+		faulty = pair(new Faulty[1]);
+	}
+
+	/**
+	 * Connects a and b, resuming their sessions if they have one. The
+	 * output of a goes through a Faulty stream on the first connection.
+	 */
+	private Faulty pair(Faulty[] faulty) throws Exception {
+		final SyncSession[] accepted = new SyncSession[1];
+		final ChunkSession[] connected = new ChunkSession[1];
+		final Exception[] failure = new Exception[1];
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					accepted[0] = transport.accept();
+					connected[0] = ChunkSession.connect(accepted[0].getInputStream(),
+							accepted[0].getOutputStream(), b, listener);
+				} catch (Exception e) {
+					failure[0] = e;
+				}
+			}
+		};
+		t.start();
+		SyncSession session = transport.connect();
+		OutputStream out = session.getOutputStream();
+		if (faulty != null) {
+			out = faulty[0] = new Faulty(session);
+		}
+		ChunkSession ca = ChunkSession.connect(session.getInputStream(), out, a, listener);
+		t.join(TIMEOUT);
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+		a = ca;
+		b = connected[0];
+		return faulty != null ? faulty[0] : null;
+	}
+
+	/**
+	 * Starts writing the payload to the session and reading the payload
+	 * of the peer into the returned stream.
+	 */
+	private Thread side(final ChunkSession session, final byte[] payload, final ByteArrayOutputStream received) {
+		final Thread writer = new Thread() {
+			public void run() {
+				try {
+					OutputStream out = session.getOutputStream(null);
+					out.write(payload);
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+		};
+		writer.start();
+		Thread reader = new Thread() {
+			public void run() {
+				try {
+					InputStream in = session.getInputStream(null);
+					byte[] buffer = new byte[1000];
+					int n;
+					while ((n = in.read(buffer)) != -1) {
+						received.write(buffer, 0, n);
+					}
+					session.finish();
+					writer.join();
+				} catch (Exception e) {
+				}
+			}
+		};
+		reader.start();
+		return reader;
+	}
+
+	private static byte[] payload(int size, long seed) {
+		byte[] payload = new byte[size];
+		new Random(seed).nextBytes(payload);
+		return payload;
+	}
+
+	/**
+	 * Sends a payload each way and checks both arrived.
+	 */
+	private void exchange() throws Exception {
+		byte[] pa = payload(40 * ChunkSession.CHUNK_SIZE + 123, 1);
+		byte[] pb = payload(30 * ChunkSession.CHUNK_SIZE + 45, 2);
+		ByteArrayOutputStream ra = new ByteArrayOutputStream();
+		ByteArrayOutputStream rb = new ByteArrayOutputStream();
+		Thread ta = side(a, pa, ra);
+		Thread tb = side(b, pb, rb);
+		ta.join(TIMEOUT);
+		tb.join(TIMEOUT);
+		assertFalse(ta.isAlive());
+		assertFalse(tb.isAlive());
+		assertNull(resumeFailure);
+		assertArrayEquals(pb, ra.toByteArray());
+		assertArrayEquals(pa, rb.toByteArray());
+	}
+
+	@Test
+	public void test_exchange() throws Exception {
+		assertEquals(a.getId(), b.getId());
+		exchange();
+		assertEquals(0, resumes);
+	}
+
+	@Test
+	public void test_compressed_payload() throws Exception {
+		TaskList tl = new TaskList();
+		for(int i = 0; i < 200; i++) {
+			tl.add(new Task("task" + i, null, "project" + i % 7, Priority.MEDIUM));
+		}
+		assertTrue(SyncProtocol.shouldCompress(tl, SyncProtocol.CAPABILITIES, SyncProtocol.BLUETOOTH_SPEED));
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		SyncProtocol.writeTaskList(encoded, tl, SyncProtocol.CAPABILITIES, SyncProtocol.BLUETOOTH_SPEED);
+		final byte[] payload = encoded.toByteArray();
+		final Thread writer = new Thread() {
+			public void run() {
+				try {
+					// The list decodes without the last byte of the deflate
+					// stream, it comes in a chunk of its own
+					OutputStream out = a.getOutputStream(null);
+					out.write(payload, 0, payload.length - 1);
+					out.flush();
+					out.write(payload, payload.length - 1, 1);
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+		};
+		writer.start();
+		Thread ta = new Thread() {
+			public void run() {
+				try {
+					InputStream in = a.getInputStream(null);
+					while (in.read() != -1) {
+					}
+					a.finish();
+					writer.join();
+				} catch (Exception e) {
+				}
+			}
+		};
+		ta.start();
+		Thread tb = new Thread() {
+			public void run() {
+				try {
+					b.getOutputStream(null).close();
+				} catch (IOException e) {
+				}
+			}
+		};
+		tb.start();
+		InputStream in = b.getInputStream(null);
+		TaskMerger merger = new TaskMerger(new TaskList());
+		SyncProtocol.readTaskList(in, merger);
+		// Nothing is left of the payload, as SyncBTService checks
+		assertEquals(-1, in.read());
+		b.finish();
+		ta.join(TIMEOUT);
+		tb.join(TIMEOUT);
+		assertFalse(ta.isAlive());
+		assertFalse(tb.isAlive());
+		assertEquals(tl.digest(), merger.finish().digest());
+	}
+
+	@Test
+	public void test_window() throws Exception {
+		byte[] pa = payload((ChunkSession.WINDOW + 4) * ChunkSession.CHUNK_SIZE, 1);
+		ByteArrayOutputStream ra = new ByteArrayOutputStream();
+		ByteArrayOutputStream rb = new ByteArrayOutputStream();
+		Thread ta = side(a, pa, ra);
+		// Nothing read on b, so nothing acknowledged
+		Thread.sleep(1000);
+		assertTrue(ta.isAlive());
+		assertEquals(ChunkSession.WINDOW, faulty.frames);
+		Thread tb = side(b, new byte[0], rb);
+		ta.join(TIMEOUT);
+		tb.join(TIMEOUT);
+		assertFalse(ta.isAlive());
+		assertFalse(tb.isAlive());
+		assertArrayEquals(pa, rb.toByteArray());
+	}
+
+	@Test
+	public void test_corrupted_chunk() throws Exception {
+		faulty.corrupt = 3;
+		long start = System.currentTimeMillis();
+		exchange();
+		// Asked again with a NACK, not on the retransmit timeout
+		assertTrue(System.currentTimeMillis() - start < ChunkSession.RETRANSMIT_TIMEOUT);
+	}
+
+	@Test
+	public void test_duplicated_chunk() throws Exception {
+		faulty.duplicate = 3;
+		exchange();
+	}
+
+	@Test
+	public void test_dropped_chunk() throws Exception {
+		faulty.drop = 3;
+		long start = System.currentTimeMillis();
+		exchange();
+		assertTrue(System.currentTimeMillis() - start >= ChunkSession.RETRANSMIT_TIMEOUT);
+	}
+
+	@Test
+	public void test_resume() throws Exception {
+		ChunkSession first = a;
+		ChunkSession second = b;
+		faulty.cut = 20;
+		exchange();
+		assertEquals(1, resumes);
+		assertSame(first, a);
+		assertSame(second, b);
+		assertFalse(a.isSuspended());
+	}
+
+	@Test
+	public void test_resume_unknown_session() throws Exception {
+		// b lost its session, a gives up its own
+		ChunkSession first = a;
+		b = null;
+		pair(null);
+		assertNotSame(first, a);
+		assertEquals(a.getId(), b.getId());
+		try {
+			first.getInputStream(null).read();
+			fail("The first session should be aborted");
+		} catch (IOException e) {
+		}
+	}
+}
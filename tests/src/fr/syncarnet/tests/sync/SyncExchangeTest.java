@@ -0,0 +1,225 @@
+package fr.syncarnet.tests.sync;
+
+
+import fr.syncarnet.sync.*;
+import fr.syncarnet.tasks.*;
+import static org.junit.Assert.*;
+import java.io.IOException;
+import java.util.UUID;
+
+import org.junit.Test;
+
+public class SyncExchangeTest {
+	private static final long TIMEOUT = 30000;
+
+	private static TaskList list(String prefix, int size) {
+		TaskList tl = new TaskList();
+		for(int i = 0; i < size; i++) {
+			tl.add(new Task(prefix + i, null, null, Priority.MEDIUM));
+		}
+		return tl;
+	}
+
+	private static Task find(TaskList tl, UUID uuid) {
+		for(Task t : tl) {
+			if(t.getUUID().equals(uuid)) {
+				return t;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Syncs a with b over a LoopbackTransport, returns the lists merged
+	 * on both sides, null where the peers were in sync.
+	 */
+	private static TaskList[] exchange(TaskList a, final TaskList b) throws Exception {
+		final LoopbackTransport transport = new LoopbackTransport();
+		final TaskList[] merged = new TaskList[2];
+		final Exception[] failure = new Exception[1];
+		Thread peer = new Thread() {
+			public void run() {
+				try {
+					SyncSession session = transport.accept();
+					merged[1] = SyncExchange.run(session, b, new TaskMerger(b), SyncProtocol.WIFI_SPEED);
+					session.close();
+				} catch (Exception e) {
+					failure[0] = e;
+				}
+			}
+		};
+		peer.start();
+		SyncSession session = transport.connect();
+		merged[0] = SyncExchange.run(session, a, new TaskMerger(a), SyncProtocol.WIFI_SPEED);
+		session.close();
+		peer.join(TIMEOUT);
+		assertFalse(peer.isAlive());
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+		transport.close();
+		return merged;
+	}
+
+	/**
+	 * Returns the plan a would agree on with b, neither list is changed.
+	 */
+	private static SyncProtocol.Plan plan(TaskList a, final TaskList b) throws Exception {
+		final LoopbackTransport transport = new LoopbackTransport();
+		Thread peer = new Thread() {
+			public void run() {
+				try {
+					SyncSession session = transport.accept();
+					SyncProtocol.negotiate(session.getInputStream(), session.getOutputStream(), b);
+				} catch (IOException e) {
+				}
+			}
+		};
+		peer.start();
+		SyncSession session = transport.connect();
+		SyncProtocol.Plan plan = SyncProtocol.negotiate(session.getInputStream(), session.getOutputStream(), a);
+		peer.join(TIMEOUT);
+		transport.close();
+		return plan;
+	}
+
+	@Test
+	public void test_first_contact() throws Exception {
+		TaskList a = list("a", 300);
+		TaskList b = list("b", 200);
+		Task shared = new Task("shared", null, null, Priority.HIGH);
+		a.add(shared);
+		b.add(new Task(shared));
+		SyncProtocol.Plan plan = plan(a, b);
+		assertFalse(plan.inSync);
+		// The peers never met, their lists are compared with Merkle trees
+		assertFalse(plan.sendsOperations());
+
+		TaskList[] merged = exchange(a, b);
+		assertEquals(501, merged[0].size());
+		assertEquals(501, merged[1].size());
+		assertEquals(merged[0].digest(), merged[1].digest());
+	}
+
+	@Test
+	public void test_operations() throws Exception {
+		TaskList[] merged = exchange(list("a", 300), list("b", 200));
+		TaskList a = merged[0];
+		TaskList b = merged[1];
+
+		Task t = a.get(10);
+		Task da = a.get(20);
+		Task db = find(b, a.get(30).getUUID());
+
+		// Concurrent edits of different fields of the same task
+		Task ta = new Task(t);
+		ta.setDescription("edited on a");
+		a.add(ta);
+		Task tb = new Task(find(b, t.getUUID()));
+		tb.setPriority(Priority.HIGH);
+		b.add(tb);
+		// A task deleted on each side
+		a.remove(da);
+		b.remove(db);
+		TaskList added = list("c", 5);
+		for(Task task : added) {
+			b.add(new Task(task));
+		}
+
+		SyncProtocol.Plan plan = plan(a, b);
+		assertFalse(plan.inSync);
+		assertTrue(plan.sendsOperations());
+		// Only the changes made on a since the last sync go to b
+		assertEquals(1, plan.select(a).size());
+		assertEquals(1, plan.select(a).getDeletedTasks().size());
+
+		merged = exchange(a, b);
+		for(TaskList tl : merged) {
+			assertEquals(503, tl.size());
+			Task both = find(tl, t.getUUID());
+			assertEquals("edited on a", both.getDescription());
+			assertEquals(Priority.HIGH, both.getPriority());
+			assertTrue(tl.deleted(da));
+			assertTrue(tl.deleted(db));
+		}
+		assertEquals(merged[0].digest(), merged[1].digest());
+	}
+
+	@Test
+	public void test_in_sync() throws Exception {
+		TaskList[] merged = exchange(list("a", 100), list("b", 100));
+		assertTrue(plan(merged[0], merged[1]).inSync);
+		merged = exchange(merged[0], merged[1]);
+		assertNull(merged[0]);
+		assertNull(merged[1]);
+	}
+
+	@Test
+	public void test_server() throws Exception {
+		final TaskList[] owner = { list("o", 100) };
+		final IOException[] failure = new IOException[1];
+		SyncServer server = new SyncServer(new SyncServer.TaskStore() {
+			public TaskList getTasks() {
+				synchronized (owner) {
+					return owner[0];
+				}
+			}
+
+			public Snapshot getSnapshot() {
+				return null;
+			}
+
+			public void onMerged(TaskList merged, boolean complete) {
+				synchronized (owner) {
+					owner[0] = merged;
+					owner.notifyAll();
+				}
+			}
+
+			public void onInSync() {
+			}
+
+			public void onFailed(IOException e) {
+				failure[0] = e;
+			}
+		}, 0);
+		// Both members sync in one round
+		server.setGroupSize(2);
+		server.start();
+		final TcpTransport transport = new TcpTransport("127.0.0.1", server.getPort());
+		final TaskList[] members = { list("m", 200), list("n", 300) };
+		Thread[] threads = new Thread[members.length];
+		for(int i = 0; i < members.length; i++) {
+			final int member = i;
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						SyncSession session = transport.connect();
+						TaskList tl = members[member];
+						members[member] = SyncExchange.run(session, tl, new TaskMerger(tl), SyncProtocol.WIFI_SPEED);
+						session.close();
+					} catch (IOException e) {
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread thread : threads) {
+			thread.join(TIMEOUT);
+			assertFalse(thread.isAlive());
+		}
+		long end = System.currentTimeMillis() + TIMEOUT;
+		synchronized (owner) {
+			while (owner[0].size() < 600 && System.currentTimeMillis() < end) {
+				owner.wait(end - System.currentTimeMillis());
+			}
+		}
+		server.stop();
+		assertNull(failure[0]);
+		assertEquals(600, owner[0].size());
+		for(TaskList member : members) {
+			assertEquals(600, member.size());
+			assertEquals(owner[0].digest(), member.digest());
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package fr.syncarnet.tests.tasks;
+
+import fr.syncarnet.tasks.*;
+import java.util.Calendar;
+import java.util.Random;
+
+/**
+ * Times building and merging growing TaskLists, the time per task should
+ * only grow logarithmically.
+ */
+public class TaskListBenchmark {
+	private static final Priority[] PRIORITIES = Priority.values();
+
+	public static void main(String[] args) throws Exception {
+		int max = args.length > 0 ? Integer.parseInt(args[0]) : 32000;
+		Random random = new Random(42);
+		for(int n = 1000; n <= max; n *= 2) {
+			TaskList local = new TaskList();
+			TaskList received = new TaskList();
+			long start = System.nanoTime();
+			for(int i = 0; i < n; i++) {
+				Task t = newTask(random, i);
+				local.add(t);
+				// Three quarters of the tasks are known by both sides
+				if(i % 4 != 0) {
+					received.add(t);
+				} else {
+					received.add(newTask(random, n + i));
+				}
+			}
+			long built = System.nanoTime() - start;
+			for(int i = 0; i < n / 10; i++) {
+				received.remove(received.get(random.nextInt(received.size())));
+			}
+
+			TaskList.merge(received, local);
+			int runs = 5;
+			start = System.nanoTime();
+			for(int i = 0; i < runs; i++) {
+				TaskList.merge(received, local);
+			}
+			long elapsed = (System.nanoTime() - start) / runs;
+			System.out.println(String.format("%6d tasks: build %8.2f ms, %6.0f ns/task, merge %8.2f ms, %6.0f ns/task",
+						n, built / 1e6, (double) built / (2 * n), elapsed / 1e6, (double) elapsed / (2 * n)));
+
+			byte[] bytes = WireCodec.encode(local);
+			start = System.nanoTime();
+			for(int i = 0; i < runs; i++) {
+				WireCodec.decode(WireCodec.encode(local));
+			}
+			elapsed = (System.nanoTime() - start) / runs;
+			System.out.println(String.format("%6d tasks: wire %8d bytes, %6.1f bytes/task, encode+decode %8.2f ms",
+						n, bytes.length, (double) bytes.length / n, elapsed / 1e6));
+		}
+	}
+
+	private static Task newTask(Random random, int i) {
+		Calendar due = null;
+		if(random.nextBoolean()) {
+			due = Calendar.getInstance();
+			due.add(Calendar.DAY_OF_YEAR, random.nextInt(365));
+		}
+		return new Task("task " + i, due, "project" + random.nextInt(20),
+				PRIORITIES[random.nextInt(PRIORITIES.length)]);
+	}
+}
@@ -6,6 +6,15 @@ import static org.junit.Assert.*;
 import org.junit.Before;
 import java.util.Calendar;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 
 import org.junit.Test;
 
@@ -56,6 +65,54 @@ public class TaskListTest {
 		assertEquals(tl1.get(2).getDescription(), "t1");
 	}
 
+	@Test
+	public void test_order_many() {
+		Random random = new Random(1);
+		TaskList tl1 = new TaskList();
+		ArrayList<Task> added = new ArrayList<Task>();
+		for(int i = 0; i < 500; i++) {
+			Calendar c = null;
+			if(random.nextBoolean()) {
+				c = Calendar.getInstance();
+				c.set(2014, 1, 1 + random.nextInt(20));
+			}
+			Task t = new Task("t" + i, c, null, Priority.values()[random.nextInt(3)]);
+			tl1.add(t);
+			added.add(t);
+		}
+		for(int i = 0; i < 250; i++) {
+			tl1.remove(added.remove(random.nextInt(added.size())));
+		}
+		assertEquals(250, tl1.size());
+		Task.CompareWithDueAndPriority comparator = new Task.CompareWithDueAndPriority();
+		for(int i = 1; i < tl1.size(); i++) {
+			assertTrue(comparator.compare(tl1.get(i - 1), tl1.get(i)) <= 0);
+		}
+		for(Task t : added) {
+			assertEquals(t, tl1.get(tl1.indexOf(t)));
+		}
+	}
+
+	@Test
+	public void test_due() {
+		Calendar c = Calendar.getInstance();
+		c.set(1969, 11, 31, 15, 30);
+		Task t = new Task("t1", c, null, Priority.MEDIUM);
+		assertEquals(-1, t.getDueDay());
+		c.set(2014, 1, 28, 15, 30);
+		t.setDue(c);
+		Calendar due = t.getDue();
+		assertEquals(2014, due.get(Calendar.YEAR));
+		assertEquals(1, due.get(Calendar.MONTH));
+		assertEquals(28, due.get(Calendar.DAY_OF_MONTH));
+		assertEquals(0, due.get(Calendar.HOUR_OF_DAY));
+		due.add(Calendar.DAY_OF_MONTH, 1);
+		assertEquals(28, t.getDue().get(Calendar.DAY_OF_MONTH));
+		t.setDue(null);
+		assertEquals(null, t.getDue());
+		assertEquals("", t.getFormattedDue());
+	}
+
 	@Test
 	public void test_remove() {
 		Task t = new Task("t1", null, null, Priority.MEDIUM);
@@ -80,6 +137,107 @@ public class TaskListTest {
 		assertFalse(tl1.contains(t));
 	}
 
+	@Test
+	public void test_remove_edited() {
+		Task t = new Task("t1", null, "projet", Priority.LOW);
+		TaskList tl1 = new TaskList();
+		tl1.add(new Task("t2", null, null, Priority.MEDIUM));
+		tl1.add(t);
+		tl1.add(new Task("t3", null, null, Priority.HIGH));
+		t.setPriority(Priority.HIGH);
+		t.setProject("projet1");
+		assertEquals(2, tl1.indexOf(t));
+		tl1.remove(t, "projet");
+		assertFalse(tl1.contains(t));
+		tl1.add(t);
+		assertEquals(3, tl1.size());
+		assertEquals("t3", tl1.get(0).getDescription());
+		assertEquals("t1", tl1.get(1).getDescription());
+		assertEquals(1, tl1.indexOf(t));
+		assertEquals(1, tl1.getProjects().size());
+		assertTrue(tl1.getProjects().contains("projet1"));
+	}
+
+	@Test
+	public void test_deleted_tasks() {
+		DeletedTasks dt = new DeletedTasks();
+		ArrayList<UUID> uuids = new ArrayList<UUID>();
+		for(int i = 0; i < 100; i++) {
+			UUID uuid = UUID.randomUUID();
+			uuids.add(uuid);
+			dt.add(uuid, i);
+		}
+		dt.add(uuids.get(0), 100);
+		assertEquals(100, dt.size());
+		assertEquals(100, dt.getTimestamp(uuids.get(0)));
+		dt.clearDeletedTask(50);
+		assertEquals(51, dt.size());
+		assertTrue(dt.contains(uuids.get(0)));
+		assertFalse(dt.contains(uuids.get(49)));
+		assertTrue(dt.contains(uuids.get(50)));
+		assertTrue(dt.remove(uuids.get(50)));
+		assertFalse(dt.contains(uuids.get(50)));
+		assertEquals(99, dt.getTimestamp(uuids.get(99)));
+	}
+
+	@Test
+	public void test_compact_tombstones() throws Exception {
+		TaskList tl1 = new TaskList();
+		UUID old = UUID.randomUUID();
+		UUID recent = UUID.randomUUID();
+		long before = System.currentTimeMillis();
+		tl1.getDeletedTasks().add(old, 1000);
+		Thread.sleep(10);
+		long between = System.currentTimeMillis();
+		Thread.sleep(10);
+		tl1.getDeletedTasks().add(recent, 5000);
+		assertEquals(0, new TombstoneCompactor(0).compact(tl1, 0));
+		// Deleted long ago but just received, kept until the peers synced
+		assertEquals(0, new TombstoneCompactor(0).compact(tl1, before));
+		assertEquals(0, new TombstoneCompactor(1000).compact(tl1, between));
+		assertEquals(1, new TombstoneCompactor(0).compact(tl1, between));
+		assertFalse(tl1.getDeletedTasks().contains(old));
+		assertTrue(tl1.getDeletedTasks().contains(recent));
+
+		// The date of addition is saved with the list
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		new ObjectOutputStream(b).writeObject(tl1);
+		TaskList read = (TaskList) new TaskListInputStream(new ByteArrayInputStream(b.toByteArray())).readObject();
+		assertEquals(tl1.getDeletedTasks().getAdded(recent), read.getDeletedTasks().getAdded(recent));
+	}
+
+	@Test
+	public void test_tombstone_horizon() {
+		long now = System.currentTimeMillis();
+		long horizon = TombstoneCompactor.horizon(now);
+		assertTrue(horizon > now - TombstoneCompactor.DEFAULT_GRACE);
+		long day = 24L * 60 * 60 * 1000;
+		// The same all day long
+		assertEquals(horizon, TombstoneCompactor.horizon(now / day * day));
+		assertEquals(horizon, TombstoneCompactor.horizon(now / day * day + day - 1));
+
+		TaskList a = new TaskList();
+		Task t = new Task("t", null, null, Priority.MEDIUM);
+		a.add(t);
+		TaskList b = new TaskList(a);
+		// Compacted on b only
+		a.getDeletedTasks().add(UUID.randomUUID(), horizon - 1);
+		assertEquals(a.digest(), b.digest());
+		assertArrayEquals(a.merkleTree().getNodes(), b.merkleTree().getNodes());
+		assertFalse(a.digest(0).equals(b.digest(0)));
+		a.getDeletedTasks().add(UUID.randomUUID(), horizon);
+		assertFalse(a.digest().equals(b.digest()));
+
+		// Not kept again by b, unless it deletes a task b has
+		TaskMerger merger = new TaskMerger(b);
+		merger.addDeleted(a.getDeletedTasks());
+		merger.addDeleted(t.getUUID(), horizon - 1);
+		TaskList merged = merger.finish();
+		assertEquals(0, merged.size());
+		assertEquals(2, merged.getDeletedTasks().size());
+		assertTrue(merged.deleted(t));
+	}
+
 	@Test
 	public void test_merge_deleted() {
 		Task t = new Task("t11", null, null, Priority.MEDIUM);
@@ -144,4 +302,402 @@ public class TaskListTest {
 		assertFalse(p.contains("projet1"));
 		assertTrue(p.isEmpty());
 	}
+
+	@Test
+	public void test_set() {
+		TaskList tl1 = new TaskList();
+		Task t1 = new Task("t1", null, "projet", Priority.MEDIUM);
+		Task t2 = new Task("t2", null, "projet", Priority.LOW);
+		tl1.add(t1);
+		tl1.add(t2);
+		tl1.remove(t1);
+		ArrayList<String> p = tl1.getProjects();
+
+		// Same task with another project, restored from its tombstone
+		Task edited = new Task(t1);
+		edited.setProject("autre");
+		assertSame(t2, tl1.set(0, edited));
+		assertEquals(1, tl1.size());
+		assertSame(edited, tl1.get(0));
+		assertSame("autre", tl1.get(0).getProject());
+		assertFalse(tl1.deleted(edited));
+		assertTrue(tl1.deleted(t2));
+		assertEquals(1, p.size());
+		assertTrue(p.contains("autre"));
+
+		// Same UUID, the project is released and interned again
+		Task back = new Task(edited);
+		back.setProject(new String("projet"));
+		tl1.set(0, back);
+		assertEquals(1, tl1.size());
+		assertEquals(1, p.size());
+		assertSame(p.get(0), tl1.get(0).getProject());
+		assertEquals(tl1.digest(), new TaskList(tl1).digest());
+	}
+
+	@Test
+	public void test_merge_newest() throws Exception {
+		Task t = new Task("t1", null, null, Priority.MEDIUM);
+		Task copy = copy(t);
+		TaskList tl1 = new TaskList();
+		tl1.add(t);
+		TaskList tl2 = new TaskList();
+		tl2.add(copy);
+		Thread.sleep(5);
+		copy.setDescription("t1-local");
+		assertEquals("t1-local", TaskList.merge(tl1, tl2).get(0).getDescription());
+		assertEquals("t1-local", TaskList.merge(tl2, tl1).get(0).getDescription());
+		assertEquals(1, TaskList.merge(tl1, tl2).size());
+	}
+
+	@Test
+	public void test_wire_codec() throws Exception {
+		TaskList tl1 = new TaskList();
+		Calendar c = Calendar.getInstance();
+		c.set(1969, Calendar.JULY, 20);
+		tl1.add(new Task("t1", c, "Work", Priority.HIGH));
+		tl1.add(new Task("t2 \u00e9t\u00e9", null, "Work", Priority.LOW));
+		Task t3 = new Task("t3", null, null, Priority.MEDIUM);
+		t3.setProject("Home");
+		tl1.add(t3);
+		tl1.getDeletedTasks().add(UUID.randomUUID(), 2000);
+		tl1.getDeletedTasks().add(UUID.randomUUID(), 1000);
+		TaskList tl2 = WireCodec.decode(WireCodec.encode(tl1));
+		assertEquals(tl1.size(), tl2.size());
+		for(int i = 0; i < tl1.size(); i++) {
+			Task t = tl1.get(i);
+			Task u = tl2.get(i);
+			assertEquals(t.getUUID(), u.getUUID());
+			assertEquals(t.getDescription(), u.getDescription());
+			assertEquals(t.getProject(), u.getProject());
+			assertEquals(t.getPriority(), u.getPriority());
+			assertEquals(t.getDueDay(), u.getDueDay());
+			assertEquals(t.getEntry(), u.getEntry());
+			assertEquals(t.getModified(), u.getModified());
+		}
+		assertEquals(2, tl2.getProjects().size());
+		assertEquals(tl1.getDeletedTasks(), tl2.getDeletedTasks());
+		for(UUID uuid : tl1.getDeletedTasks()) {
+			assertEquals(tl1.getDeletedTasks().getTimestamp(uuid), tl2.getDeletedTasks().getTimestamp(uuid));
+		}
+	}
+
+	@Test
+	public void test_wire_codec_long_string() throws Exception {
+		TaskList tl1 = new TaskList();
+		tl1.add(new Task("#", null, null, Priority.MEDIUM));
+		byte[] b = WireCodec.encode(tl1);
+		// The length of the description becomes 2^31 - 1
+		ByteArrayOutputStream forged = new ByteArrayOutputStream();
+		for(int i = 0; i < b.length; i++) {
+			if(i + 1 < b.length && b[i] == 1 && b[i + 1] == '#') {
+				forged.write(new byte[] { (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x07 });
+			} else {
+				forged.write(b[i]);
+			}
+		}
+		assertEquals(b.length + 4, forged.size());
+		try {
+			WireCodec.decode(forged.toByteArray());
+			fail("Decoded a string of 2^31 - 1 bytes");
+		} catch(IOException e) {
+		}
+		char[] c = new char[WireCodec.MAX_STRING + 1];
+		Arrays.fill(c, 'x');
+		tl1.add(new Task(new String(c), null, null, Priority.MEDIUM));
+		try {
+			WireCodec.encode(tl1);
+			fail("Encoded a string longer than MAX_STRING");
+		} catch(IOException e) {
+		}
+	}
+
+	@Test
+	public void test_copy() {
+		TaskList tl1 = new TaskList();
+		Task t = new Task("t1", null, "Work", Priority.LOW);
+		tl1.add(t);
+		tl1.add(new Task("t2", null, null, Priority.HIGH));
+		tl1.getDeletedTasks().add(UUID.randomUUID(), 1000);
+		TaskList tl2 = new TaskList(tl1);
+		t.setDescription("t1-edited");
+		tl1.getDeletedTasks().add(UUID.randomUUID(), 2000);
+		assertEquals(2, tl2.size());
+		assertEquals("t1", tl2.get(tl2.indexOf(t)).getDescription());
+		assertEquals(1, tl2.getDeletedTasks().size());
+		assertEquals(1, tl2.getProjects().size());
+	}
+
+	@Test
+	public void test_merge_stream() throws Exception {
+		TaskList local = new TaskList();
+		Task t = new Task("t1", null, null, Priority.LOW);
+		local.add(t);
+		local.add(new Task("t2", null, null, Priority.MEDIUM));
+		TaskList received = new TaskList();
+		Task moved = copy(t);
+		Thread.sleep(5);
+		moved.setPriority(Priority.HIGH);
+		received.add(moved);
+		received.add(new Task("t3", null, null, Priority.LOW));
+		TaskMerger merger = new TaskMerger(local);
+		merger.read(new WireCodec.Reader(new ByteArrayInputStream(WireCodec.encode(received))));
+		TaskList tf = merger.finish();
+		assertEquals(3, tf.size());
+		assertEquals(Priority.HIGH, tf.get(0).getPriority());
+		assertEquals("t2", tf.get(1).getDescription());
+		assertEquals("t3", tf.get(2).getDescription());
+		assertEquals(2, local.size());
+	}
+
+	@Test
+	public void test_digest() throws Exception {
+		Task t1 = new Task("t1", null, null, Priority.LOW);
+		Task t2 = new Task("t2", null, "Work", Priority.HIGH);
+		Task t3 = new Task("t3", null, null, Priority.MEDIUM);
+		TaskList tl1 = new TaskList();
+		tl1.add(t1);
+		tl1.add(t2);
+		tl1.add(t3);
+		TaskList tl2 = new TaskList();
+		tl2.add(copy(t3));
+		tl2.add(copy(t2));
+		tl2.add(copy(t1));
+		assertEquals(tl1.digest(), tl2.digest());
+		tl1.remove(t1);
+		assertFalse(tl1.digest().equals(tl2.digest()));
+		Thread.sleep(5);
+		Task edited = copy(t2);
+		edited.setDescription("t2-edited");
+		tl2.add(edited);
+		assertEquals(TaskList.merge(tl1, tl2).digest(), TaskList.merge(tl2, tl1).digest());
+	}
+
+	@Test
+	public void test_merkle() throws Exception {
+		TaskList tl1 = new TaskList();
+		TaskList tl2 = new TaskList();
+		for(int i = 0; i < 100; i++) {
+			Task t = new Task("t" + i, null, null, Priority.MEDIUM);
+			tl1.add(t);
+			tl2.add(copy(t));
+		}
+		Task t = new Task("new", null, null, Priority.HIGH);
+		tl1.add(t);
+		boolean[] leaves = new boolean[MerkleTree.LEAVES];
+		MerkleTree m1 = tl1.merkleTree();
+		MerkleTree m2 = tl2.merkleTree();
+		int differing = 0;
+		for(int node = 0; node < MerkleTree.FANOUT; node++) {
+			long[] l1 = m1.getLeaves(node);
+			long[] l2 = m2.getLeaves(node);
+			for(int i = 0; i < MerkleTree.FANOUT; i++) {
+				if(l1[i] != l2[i]) {
+					leaves[node * MerkleTree.FANOUT + i] = true;
+					differing++;
+				}
+			}
+		}
+		assertEquals(1, differing);
+		assertTrue(leaves[MerkleTree.bucket(t.getUUID())]);
+		assertTrue(tl1.inBuckets(leaves).contains(t));
+		assertTrue(TaskList.merge(tl1.inBuckets(leaves), tl2).digest().equals(tl1.digest()));
+	}
+
+	@Test
+	public void test_merge_keeps_inputs() {
+		Task t = new Task("t1", null, null, Priority.MEDIUM);
+		TaskList tl1 = new TaskList();
+		tl1.add(t);
+		tl1.add(new Task("t12", null, null, Priority.LOW));
+		TaskList tl2 = new TaskList();
+		tl2.add(t);
+		tl2.remove(t);
+		tl2.add(new Task("t22", null, null, Priority.HIGH));
+		TaskList tf = TaskList.merge(tl1, tl2);
+		assertEquals(2, tf.size());
+		assertEquals("t22", tf.get(0).getDescription());
+		assertTrue(tf.deleted(t));
+		assertEquals(2, tl1.size());
+		assertEquals(1, tl2.size());
+	}
+
+	@Test
+	public void test_read_first_format() throws Exception {
+		// Saved by the first release: three tasks and one deleted
+		FileInputStream in = new FileInputStream("assets/tasks-0.1");
+		TaskList tl = (TaskList) new TaskListInputStream(in).readObject();
+		in.close();
+		assertEquals(3, tl.size());
+		Task t = tl.get(0);
+		assertEquals("Buy milk", t.getDescription());
+		assertEquals("home", t.getProject());
+		assertEquals(Priority.HIGH, t.getPriority());
+		assertEquals(2014, t.getDue().get(Calendar.YEAR));
+		assertEquals(Calendar.MARCH, t.getDue().get(Calendar.MONTH));
+		assertEquals(5, t.getDue().get(Calendar.DAY_OF_MONTH));
+		assertEquals(1393000000000L, t.getEntry());
+		assertEquals("Write report", tl.get(1).getDescription());
+		assertEquals(1393000002000L, tl.get(1).getModified());
+		assertEquals("Call Bob", tl.get(2).getDescription());
+		assertNull(tl.get(2).getProject());
+		assertEquals(2, tl.getProjects().size());
+		UUID gone = UUID.fromString("00000000-0000-0000-0000-000000000004");
+		assertEquals(1, tl.getDeletedTasks().size());
+		assertEquals(1393000004000L, tl.getDeletedTasks().getTimestamp(gone));
+		assertEquals(4, tl.getLog().size());
+		// The index was rebuilt
+		assertEquals(1, tl.indexOf(tl.get(1)));
+
+		// Saved again in the current format
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		new ObjectOutputStream(b).writeObject(tl);
+		TaskList read = (TaskList) new TaskListInputStream(new ByteArrayInputStream(b.toByteArray())).readObject();
+		assertEquals(3, read.size());
+		assertEquals("Write report", read.get(1).getDescription());
+		assertEquals(1, read.getDeletedTasks().size());
+		assertEquals(tl.digest(), read.digest());
+		assertEquals(tl.getLog().size(), read.getLog().size());
+	}
+
+	@Test
+	public void test_operations() throws Exception {
+		TaskList a = new TaskList();
+		TaskList b = new TaskList();
+		Task t1 = new Task("t1", null, null, Priority.MEDIUM);
+		Task t2 = new Task("t2", null, null, Priority.LOW);
+		a.add(t1);
+		a.add(t2);
+		b = syncOperations(a, b);
+		assertEquals(2, b.size());
+		assertEquals(0, a.unseenBy(b.getLog().getSeen()).size());
+
+		// Only the changes made on b since go back
+		Task edited = new Task(t1);
+		edited.setDescription("edited");
+		b.remove(edited, null);
+		b.add(edited);
+		b.remove(t2);
+		TaskList sent = b.unseenBy(a.getLog().getSeen());
+		assertEquals(1, sent.size());
+		assertEquals(1, sent.getDeletedTasks().size());
+
+		a = syncOperations(b, a);
+		assertEquals(1, a.size());
+		assertEquals("edited", a.get(0).getDescription());
+		assertTrue(a.deleted(t2));
+		assertTrue(a.digest().equals(b.digest()));
+		assertEquals(0, b.unseenBy(a.getLog().getSeen()).size());
+	}
+
+	@Test
+	public void test_field_merge() throws Exception {
+		TaskList a = new TaskList();
+		Task t = new Task("a description long enough to matter", null, "Work", Priority.MEDIUM);
+		a.add(t);
+		TaskList b = syncOperations(a, new TaskList());
+
+		// Edits of different fields on both sides are both kept
+		Task ta = new Task(t);
+		ta.setProject("Home");
+		a.add(ta);
+		Task tb = new Task(t);
+		tb.setPriority(Priority.HIGH);
+		b.add(tb);
+
+		// Only the project goes to b
+		ByteArrayOutputStream full = new ByteArrayOutputStream();
+		WireCodec.writeOperations(full, a.unseenBy(new VersionVector()));
+		ByteArrayOutputStream delta = new ByteArrayOutputStream();
+		WireCodec.writeOperations(delta, a.unseenBy(b.getLog().getSeen()));
+		assertTrue(delta.size() < full.size() - t.getDescription().length());
+
+		TaskList a2 = syncOperations(b, a);
+		b = syncOperations(a, b);
+		a = a2;
+		assertEquals("Home", a.get(0).getProject());
+		assertEquals(Priority.HIGH, a.get(0).getPriority());
+		assertEquals(t.getDescription(), a.get(0).getDescription());
+		assertEquals("Home", b.get(0).getProject());
+		assertEquals(Priority.HIGH, b.get(0).getPriority());
+		assertEquals(t.getDescription(), b.get(0).getDescription());
+	}
+
+	@Test
+	public void test_partial_sync() throws Exception {
+		TaskList received = new TaskList();
+		Calendar overdue = Calendar.getInstance();
+		overdue.add(Calendar.DAY_OF_MONTH, -3);
+		Calendar soon = Calendar.getInstance();
+		soon.add(Calendar.DAY_OF_MONTH, 2);
+		Calendar later = Calendar.getInstance();
+		later.add(Calendar.DAY_OF_MONTH, 30);
+		received.add(new Task("later", later, null, Priority.MEDIUM));
+		received.add(new Task("low", null, null, Priority.LOW));
+		received.add(new Task("high", null, null, Priority.HIGH));
+		received.add(new Task("soon", soon, null, Priority.LOW));
+		received.add(new Task("overdue", overdue, null, Priority.LOW));
+		TaskList local = new TaskList();
+		local.add(new Task("local", null, null, Priority.MEDIUM));
+
+		// The transfer stops after the first three tasks
+		WireCodec.Reader reader = new WireCodec.Reader(new ByteArrayInputStream(WireCodec.encode(received)));
+		TaskMerger merger = new TaskMerger(local);
+		for(int i = 0; i < 3; i++) {
+			merger.add(reader.next());
+		}
+		assertTrue(merger.hasChanges());
+		TaskList partial = merger.commit();
+		assertFalse(merger.hasChanges());
+		assertEquals(4, partial.size());
+		assertEquals("overdue", partial.get(0).getDescription());
+		assertEquals("soon", partial.get(1).getDescription());
+		assertEquals("high", partial.get(2).getDescription());
+
+		// Later commits hold the previous ones
+		while(reader.hasNext()) {
+			merger.add(reader.next());
+		}
+		TaskList tf = merger.finish();
+		assertEquals(6, tf.size());
+		assertEquals(3, partial.getLog().size() - local.getLog().size());
+		assertEquals(5, tf.getLog().size() - local.getLog().size());
+	}
+
+	@Test
+	public void test_snapshot_then_changes() throws Exception {
+		TaskList current = new TaskList();
+		for(int i = 0; i < 10; i++) {
+			current.add(new Task("task " + i, null, null, Priority.MEDIUM));
+		}
+		TaskList snapshot = new TaskList(current);
+		current.remove(current.get(3));
+		Task edited = new Task(current.get(5));
+		edited.setDescription("edited");
+		current.add(edited);
+
+		// The changes come after the snapshot and win over it
+		TaskMerger merger = new TaskMerger(new TaskList());
+		merger.read(new WireCodec.Reader(new ByteArrayInputStream(WireCodec.encode(snapshot))));
+		merger.read(new WireCodec.Reader(new ByteArrayInputStream(WireCodec.encode(current))));
+		TaskList tf = merger.finish();
+		assertEquals(current.digest(), tf.digest());
+		assertEquals(9, tf.size());
+		assertEquals(1, tf.getDeletedTasks().size());
+	}
+
+	private static TaskList syncOperations(TaskList from, TaskList to) throws Exception {
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		WireCodec.writeOperations(b, from.unseenBy(to.getLog().getSeen()));
+		TaskMerger merger = new TaskMerger(to);
+		WireCodec.readOperations(new ByteArrayInputStream(b.toByteArray()), merger);
+		merger.addSeen(from.getLog().getSeen(), from.getLog().getClock());
+		return merger.finish();
+	}
+
+	private static Task copy(Task t) throws Exception {
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		new ObjectOutputStream(b).writeObject(t);
+		return (Task) new ObjectInputStream(new ByteArrayInputStream(b.toByteArray())).readObject();
+	}
 }